@@ -18,6 +18,8 @@ public class Constants {
 
 	public static final String KAFKA_TOPIC = "TMAAS";
 	public static final String KAFKA_LISTENER_ID = "topo.listener";
+	public static final String KAFKA_BATCH_LISTENER_ID = "topo.batch.listener";
+	public static final String KAFKA_DLT_TOPIC = "TMAAS-DLT";
 
 	public static final String LABEL_MICROSVC = "microSvcName";
 	public static final String LABEL_HA_ROLE = "haRole";
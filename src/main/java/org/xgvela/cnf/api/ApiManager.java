@@ -23,15 +23,24 @@ import org.xgvela.cnf.topo.NetworkFunction;
 import org.xgvela.cnf.util.TopoManager;
 import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class ApiManager {
     private static Logger LOG = LogManager.getLogger(ApiManager.class);
     public static ApiManagedElement apiMe = null;
 
+    private static final long READ_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("ZK_READ_TIMEOUT_MS", "30000"));
+
     public synchronized static String getTree() throws JsonProcessingException {
         //Form the tree everytime as state may change
         apiMe = getApiMe();
@@ -40,32 +49,18 @@ public class ApiManager {
 
     public static ApiManagedElement getApiMe() {
         try {
-            byte[] meData = ZKManager.getData(ZKUtil.generatePath());
-            ManagedElement me = TopoManager.mapper.readValue(meData, ManagedElement.class);
+            // the tree in memory is that of this replica's NFs only, ZK has all of them once the writes are in
+            ZKWriteBehind.flush(READ_TIMEOUT_MS);
+
+            // every level is read at once, the NFs, their services and instances fan out
+            CompletableFuture<byte[]> meData = ZKManager.getDataAsync(ZKUtil.generatePath());
+            CompletableFuture<List<ApiNetworkFunction>> nfs = ZKManager.getChildrenAsync(ZKUtil.generatePath())
+                    .thenCompose(children -> all(children, ApiManager::getApiNf));
+
+            ManagedElement me = TopoManager.mapper.readValue(meData.get(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                    ManagedElement.class);
             apiMe = ApiUtil.ConvertMeToMeApi(me);
-            List<String> nfs = ZKManager.getChildren(ZKUtil.generatePath());
-            for (String nf : nfs) {
-                byte[] nfData = ZKManager.getData(ZKUtil.generatePath(nf));
-                NetworkFunction nwFunc = TopoManager.mapper.readValue(nfData, NetworkFunction.class);
-                ApiNetworkFunction apiNetworkFunction = ApiUtil.ConvertNFToNFApi(nwFunc);
-                //Number of services
-                List<String> services = ZKManager.getChildren(ZKUtil.generatePath(nf));
-                for (String service : services) {
-                    byte[] serviceData = ZKManager.getData(ZKUtil.generatePath(nf, service));
-                    NFService nfService = TopoManager.mapper.readValue(serviceData, NFService.class);
-                    ApiNFService apiNfService = ApiUtil.ConvertSVCToSvcApi(nf,nfService);
-                    List<String> nfSrvcChildren = ZKManager.getChildren(ZKUtil.generatePath(nf, service));
-                    for (String nfSrvcInst : nfSrvcChildren) {
-                        byte[] srvcInstanceData = ZKManager.getData(ZKUtil.generatePath(nf, service, nfSrvcInst));
-                        NFServiceInstance nfServiceInstance = TopoManager.mapper.readValue(srvcInstanceData, NFServiceInstance.class);
-                        ApiNFServiceInstance serviceInt = ApiUtil.ConvertNFToSvcInstanceApi(nfServiceInstance);
-                        apiNfService.getElemSet().add(serviceInt);
-                        apiNfService.getElem().put(serviceInt.getId(), serviceInt);
-
-                    }
-                    apiNetworkFunction.getElemSet().add(apiNfService);
-                    apiNetworkFunction.getElem().put(apiNfService.getId(), apiNfService);
-                }
+            for (ApiNetworkFunction apiNetworkFunction : nfs.get(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
                 apiMe.getElemList().add(apiNetworkFunction);
                 apiMe.getElem().put(apiNetworkFunction.getId(), apiNetworkFunction);
             }
@@ -75,6 +70,65 @@ public class ApiManager {
         return apiMe;
     }
 
+    private static CompletableFuture<ApiNetworkFunction> getApiNf(String nf) {
+        String path = ZKUtil.generatePath(nf);
+        CompletableFuture<byte[]> nfData = ZKManager.getDataAsync(path);
+        CompletableFuture<List<ApiNFService>> services = ZKManager.getChildrenAsync(path)
+                .thenCompose(children -> all(children, service -> getApiService(nf, service)));
+
+        return nfData.thenCombine(services, (data, apiServices) -> convert(() -> {
+            NetworkFunction nwFunc = TopoManager.mapper.readValue(data, NetworkFunction.class);
+            ApiNetworkFunction apiNetworkFunction = ApiUtil.ConvertNFToNFApi(nwFunc);
+            for (ApiNFService apiNfService : apiServices) {
+                apiNetworkFunction.getElemSet().add(apiNfService);
+                apiNetworkFunction.getElem().put(apiNfService.getId(), apiNfService);
+            }
+            return apiNetworkFunction;
+        }));
+    }
+
+    private static CompletableFuture<ApiNFService> getApiService(String nf, String service) {
+        String path = ZKUtil.generatePath(nf, service);
+        CompletableFuture<byte[]> serviceData = ZKManager.getDataAsync(path);
+        CompletableFuture<List<ApiNFServiceInstance>> instances = ZKManager.getChildrenAsync(path)
+                .thenCompose(children -> all(children, instance -> ZKManager
+                        .getDataAsync(ZKUtil.generatePath(nf, service, instance))
+                        .thenApply(data -> convert(() -> ApiUtil.ConvertNFToSvcInstanceApi(
+                                TopoManager.mapper.readValue(data, NFServiceInstance.class))))));
+
+        return serviceData.thenCombine(instances, (data, apiInstances) -> convert(() -> {
+            NFService nfService = TopoManager.mapper.readValue(data, NFService.class);
+            ApiNFService apiNfService = ApiUtil.ConvertSVCToSvcApi(nf, nfService);
+            for (ApiNFServiceInstance serviceInt : apiInstances) {
+                apiNfService.getElemSet().add(serviceInt);
+                apiNfService.getElem().put(serviceInt.getId(), serviceInt);
+            }
+            return apiNfService;
+        }));
+    }
+
+    // results in the order of the children
+    private static <R> CompletableFuture<List<R>> all(List<String> children,
+            Function<String, CompletableFuture<R>> load) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(children.size());
+        for (String child : children)
+            futures.add(load.apply(child));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<R> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<R> future : futures)
+                results.add(future.join());
+            return results;
+        });
+    }
+
+    private static <R> R convert(Callable<R> conversion) {
+        try {
+            return conversion.call();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
 }
 
 
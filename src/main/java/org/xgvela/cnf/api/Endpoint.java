@@ -24,6 +24,7 @@ import org.xgvela.cnf.util.TopoManager;
 import org.xgvela.cnf.zk.Leader;
 import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -99,6 +100,7 @@ public class Endpoint {
         try {
             kafkaConfig.getRegistry().stop();
             LOG.debug("kafka listener closed");
+            ZKWriteBehind.flush(ZKWriteBehind.FLUSH_TIMEOUT_MS);
             Leader.leaderLatch.countDown();
             Thread.sleep(500);
             ZKManager.close();
@@ -117,6 +119,8 @@ public class Endpoint {
         LOG.info("init method called to wipe out the storage data");
         try {
             ConstructTree.treeReadyFlag.set(false);
+            // pending writes of the old tree must not land on the new one
+            ZKWriteBehind.flush(ZKWriteBehind.FLUSH_TIMEOUT_MS);
             ZKManager.delete("/me");
             ZKManager.delete("/tmaas/functionset");
             //When create managed element is called the cache of already calculated count for nfs is also deleted
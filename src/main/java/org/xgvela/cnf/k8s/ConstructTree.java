@@ -19,6 +19,7 @@ import org.xgvela.cnf.Constants;
 import org.xgvela.cnf.config.Config;
 import org.xgvela.cnf.kafka.PodDetails;
 import org.xgvela.cnf.util.EtcdUtil;
+import org.xgvela.cnf.util.TopoIdentity;
 import org.xgvela.cnf.util.TopoManager;
 import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
@@ -44,6 +45,8 @@ public class ConstructTree {
 
     public static AtomicBoolean treeReadyFlag = new AtomicBoolean();
 
+    private static final long CACHE_SYNC_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("K8S_INFORMER_SYNC_TIMEOUT_MS", "120000"));
+
 
     @Autowired
     private K8sUtil k8sClient;
@@ -77,6 +80,10 @@ public class ConstructTree {
         LOG.debug("init processing");
         manager.createManagedElement();
 
+        // lookups go to the API server until the informers have synced
+        K8sCache.start(k8s.getClient());
+        K8sCache.awaitSync(CACHE_SYNC_TIMEOUT_MS);
+
         Config.initialize();
 
         // initialize etcd client
@@ -135,21 +142,18 @@ public class ConstructTree {
 
                     LOG.debug(podDetails.getAction() + ", NF name : [" + nfName + "]" + " , NF TYPE :[ " + nfType + " ],NF Service name [ " + nfServiceName + "]");
 
-                    String nfDn = manager.getNfDn(podDetails.getNfName());
-                    String nfId = manager.getUUID(nfDn);
-
-                    String nfServiceDn = manager.getNfSvcDn(podDetails.getNfName(), podDetails.getNfServiceName());
-                    String nfServiceId = manager.getUUID(nfServiceDn);
-                    LOG.debug("adding in the map getNfNameByNfIDMap nf : ["+ nfName + "]  :: nfid ["+nfId+"]");
-                    LOG.debug("adding in the map  nfs : ["+ nfServiceName + "]  :: nfsid ["+nfServiceId+"]");
-                    String nfServiceInstanceDn = manager.getNfSvcInsDn(podDetails.getNfName(),
-                            podDetails.getNfServiceName(), podDetails.getPodName());
-                    String nfServiceInstanceId = manager.getUUID(nfServiceInstanceDn);
+                    TopoIdentity id = manager.identify(podDetails);
+                    LOG.debug("adding in the map getNfNameByNfIDMap nf : ["+ nfName + "]  :: nfid ["+id.getNfId()+"]");
+                    LOG.debug("adding in the map  nfs : ["+ nfServiceName + "]  :: nfsid ["+id.getNfServiceId()+"]");
 
                     // add to tree
                     LOG.debug("Adding to tree: [" + podName + "]" + ", NFname  [ " + podDetails.getNfName() + " ]" + " service :" + podDetails.getNfServiceName());
-                    manager.addToTree(podDetails, nfId, nfDn, nfServiceId, nfServiceDn, nfServiceInstanceId,
-                            nfServiceInstanceDn);
+                    try {
+                        manager.addToTree(podDetails, id);
+                    } catch (Exception e) {
+                        // keep building the rest of the tree, the pod is picked up again by its next event
+                        LOG.error("Unable to add Pod: [" + podName + "] to tree: " + e.getMessage(), e);
+                    }
 
                 } else {
                     LOG.debug("Pod named: [" + pod.getMetadata().getName()
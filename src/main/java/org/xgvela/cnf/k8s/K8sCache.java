@@ -0,0 +1,185 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.k8s;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.Namespace;
+import io.fabric8.kubernetes.api.model.NamespaceList;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.NodeList;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
+import io.fabric8.kubernetes.api.model.apps.DaemonSetList;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.DeploymentList;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.api.model.apps.StatefulSetList;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import io.fabric8.kubernetes.client.informers.SharedInformerFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.Constants;
+import org.xgvela.cnf.util.TopoManager;
+
+
+/**
+ * Informer backed cache of the Pods, Deployments, StatefulSets, DaemonSets,
+ * Nodes and Namespaces looked up by {@link K8sUtil}, kept current by watches.
+ * The workload informers also feed the {@link WorkloadIndex}, the node
+ * informer the {@link NodeLabelIndex}.
+ * Enabled with K8S_INFORMER_CACHE=true; until the informers have synced,
+ * and on cache misses, lookups go to the API server as before. Reported through the
+ * actuator health endpoint. The informers watch the whole cluster, so the
+ * service account needs list and watch on these resources and the memory
+ * limit has to fit them.
+ */
+@Component
+public class K8sCache implements HealthIndicator {
+
+	private static final Logger LOG = LogManager.getLogger(K8sCache.class);
+
+	public static final boolean ENABLED = Boolean.parseBoolean(System.getenv().getOrDefault("K8S_INFORMER_CACHE", "false"));
+	private static final long RESYNC_MS = 10 * 60 * 1000L;
+	private static final long SYNC_POLL_MS = 200;
+
+	private static SharedInformerFactory factory;
+	private static SharedIndexInformer<Pod> pods;
+	private static SharedIndexInformer<Deployment> deployments;
+	private static SharedIndexInformer<StatefulSet> statefulSets;
+	private static SharedIndexInformer<DaemonSet> daemonSets;
+	private static SharedIndexInformer<Node> nodes;
+	private static SharedIndexInformer<Namespace> namespaces;
+
+	private static volatile boolean synced = false;
+
+	public static synchronized void start(KubernetesClient client) {
+		if (!ENABLED || factory != null)
+			return;
+
+		LOG.info("Starting informer cache");
+		factory = client.informers();
+		pods = factory.sharedIndexInformerFor(Pod.class, PodList.class, RESYNC_MS);
+		deployments = factory.sharedIndexInformerFor(Deployment.class, DeploymentList.class, RESYNC_MS);
+		statefulSets = factory.sharedIndexInformerFor(StatefulSet.class, StatefulSetList.class, RESYNC_MS);
+		daemonSets = factory.sharedIndexInformerFor(DaemonSet.class, DaemonSetList.class, RESYNC_MS);
+		nodes = factory.sharedIndexInformerFor(Node.class, NodeList.class, RESYNC_MS);
+		namespaces = factory.sharedIndexInformerFor(Namespace.class, NamespaceList.class, RESYNC_MS);
+
+		deployments.addEventHandler(WorkloadIndex.DEPLOYMENTS);
+		statefulSets.addEventHandler(WorkloadIndex.STATEFUL_SETS);
+		daemonSets.addEventHandler(WorkloadIndex.DAEMON_SETS);
+		nodes.addEventHandler(NodeLabelIndex.NODES);
+
+		factory.startAllRegisteredInformers();
+	}
+
+	public static synchronized void stop() {
+		if (factory != null)
+			factory.stopAllRegisteredInformers();
+		factory = null;
+		synced = false;
+		WorkloadIndex.clear();
+		NodeLabelIndex.clear();
+	}
+
+	/**
+	 * waits for the initial list of every informer
+	 *
+	 * @return whether the cache is synced, false as well when not enabled
+	 */
+	public static boolean awaitSync(long timeoutMs) throws InterruptedException {
+		if (!ENABLED || factory == null)
+			return false;
+
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!hasSynced()) {
+			if (System.currentTimeMillis() > deadline) {
+				LOG.warn("Informer cache not synced after " + timeoutMs + " ms, using the API server meanwhile");
+				return false;
+			}
+			Thread.sleep(SYNC_POLL_MS);
+		}
+		LOG.info("Informer cache synced");
+		return true;
+	}
+
+	private static boolean hasSynced() {
+		if (!synced && factory != null)
+			synced = pods.hasSynced() && deployments.hasSynced() && statefulSets.hasSynced()
+					&& daemonSets.hasSynced() && nodes.hasSynced() && namespaces.hasSynced();
+		return synced;
+	}
+
+	public static boolean isSynced() {
+		return ENABLED && hasSynced();
+	}
+
+	public static Pod getPod(String namespace, String name) {
+		return pods.getIndexer().getByKey(namespace + "/" + name);
+	}
+
+	public static Deployment getDeployment(String namespace, String name) {
+		return deployments.getIndexer().getByKey(namespace + "/" + name);
+	}
+
+	public static StatefulSet getStatefulSet(String namespace, String name) {
+		return statefulSets.getIndexer().getByKey(namespace + "/" + name);
+	}
+
+	public static DaemonSet getDaemonSet(String namespace, String name) {
+		return daemonSets.getIndexer().getByKey(namespace + "/" + name);
+	}
+
+	public static Node getNode(String name) {
+		return nodes.getIndexer().getByKey(name);
+	}
+
+	public static Namespace getNamespace(String name) {
+		return namespaces.getIndexer().getByKey(name);
+	}
+
+	/**
+	 * nfId of the TMaaS annotation of a workload of this xgvelaId, else null
+	 */
+	static String nfId(HasMetadata workload) {
+		try {
+			String tmaas = workload.getMetadata().getAnnotations() == null ? null
+					: workload.getMetadata().getAnnotations().get(Constants.ANNOTATION_TMAAS);
+			if (tmaas == null)
+				return null;
+			JsonNode annotation = TopoManager.mapper.readTree(tmaas);
+			if (annotation.has(Constants.NF_ID) && annotation.has(Constants.XGVELA_ID)
+					&& annotation.get(Constants.XGVELA_ID).asText().equals(TopoManager.xgvelaId))
+				return annotation.get(Constants.NF_ID).asText();
+		} catch (Exception e) {
+			LOG.debug("Unable to read TMaaS annotation of " + workload.getMetadata().getName() + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	@Override
+	public Health health() {
+		if (!ENABLED)
+			return Health.up().withDetail("informerCache", "disabled").build();
+		return hasSynced() ? Health.up().withDetail("informerCache", "synced").build()
+				: Health.outOfService().withDetail("informerCache", "syncing").build();
+	}
+}
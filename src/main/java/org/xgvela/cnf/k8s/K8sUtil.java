@@ -34,6 +34,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.util.*;
 import java.util.function.Predicate;
@@ -51,10 +52,26 @@ public class K8sUtil {
 	private static String podNamespace = String.valueOf(System.getenv("K8S_NAMESPACE"));
 	private static String URL = "https://" + String.valueOf(System.getenv("K8S_SVC_FQDN"));
 
+	private static K8sUtil shared;
+
 	public class RobinRole {
 	}
 
-	private void newClient() {
+	@PostConstruct
+	void share() {
+		shared = this;
+	}
+
+	/**
+	 * the K8sUtil bean, for the topology objects which are not beans
+	 */
+	public static K8sUtil shared() {
+		return shared;
+	}
+
+	private synchronized void newClient() {
+		if (client != null)
+			return;
 		LOG.info("Initializing Kubernetes client with URL: " + URL);
 		client = new DefaultKubernetesClient(URL);
 	}
@@ -76,6 +93,8 @@ public class K8sUtil {
 	private Namespace getNamespace(String name) {
 		LOG.debug("Getting Namespace: " + name);
 		Namespace namespace = null;
+		if (K8sCache.isSynced() && (namespace = K8sCache.getNamespace(name)) != null)
+			return namespace;
 		try {
 			namespace = getClient().namespaces().withName(name).get();
 		} catch (KubernetesClientException e) {
@@ -119,6 +138,15 @@ public class K8sUtil {
 			LOG.info("Recalculating count, triggered by possible NF state change");
 		}
 
+		// the workloads of the namespace as indexed, instead of listing them
+		if (WorkloadIndex.isReady()) {
+			int services = WorkloadIndex.count(namespace, nfId);
+			LOG.info("NF Service Count for Namespace: [" + namespace + "], nfId: [" + nfId + "] is: [" + services
+					+ "] (indexed), Instance Count for NF is: [" + (currentCount + services) + "]");
+			K8sUtil.addNetworkFunctionCount(nfId, namespace);
+			return currentCount + services;
+		}
+
 		// filter service based on matching nfId and xgvelaId
 		Predicate<ObjectMeta> isValidNf = meta -> {
 			try {
@@ -163,15 +191,33 @@ public class K8sUtil {
 		return (currentCount + services);
 	}
 
+	/**
+	 * serves the pod from the informer cache when synced, a pod missing there
+	 * may just not be seen yet and is read from the API server
+	 */
 	public Pod getPod(String name, String namespace) {
+		if (K8sCache.isSynced()) {
+			Pod pod = K8sCache.getPod(namespace, name);
+			if (pod != null)
+				return pod;
+		}
+		return fetchPod(name, namespace);
+	}
+
+	/**
+	 * reads the pod from the API server
+	 *
+	 * @return null if the pod does not exist
+	 * @throws KubernetesClientException if the API server could not be asked
+	 */
+	public Pod fetchPod(String name, String namespace) {
 		LOG.debug("Getting Pod: " + name + ", Namespace: " + namespace);
-		Pod pod = null;
 		try {
-			pod = getClient().pods().inNamespace(namespace).withName(name).get();
+			return getClient().pods().inNamespace(namespace).withName(name).get();
 		} catch (KubernetesClientException e) {
-			LOG.error(e.getMessage(), e);
+			LOG.error("Unable to get Pod: " + name + ", Namespace: " + namespace + ": " + e.getMessage());
+			throw e;
 		}
-		return pod;
 	}
 
 	public State getNfServiceInstanceState(Pod pod) {
@@ -321,6 +367,9 @@ public class K8sUtil {
 
 	public Object getOwner(String microservice, String namespace, String kind) {
 		LOG.debug("Getting Microservice: [" + microservice + "], Namespace: [" + namespace + "], Kind: " + kind);
+		Object cached = getCachedOwner(microservice, namespace, kind);
+		if (cached != null)
+			return cached;
 		KubernetesClient client = getClient();
 		switch (kind) {
 		case "ReplicaSet":
@@ -367,6 +416,21 @@ public class K8sUtil {
 		return null;
 	}
 
+	private Object getCachedOwner(String microservice, String namespace, String kind) {
+		if (!K8sCache.isSynced())
+			return null;
+		switch (kind) {
+		case "ReplicaSet":
+			return K8sCache.getDeployment(namespace, microservice);
+		case "DaemonSet":
+			return K8sCache.getDaemonSet(namespace, microservice);
+		case "StatefulSet":
+			return K8sCache.getStatefulSet(namespace, microservice);
+		default:
+			return null;
+		}
+	}
+
 	public int getNfServiceInstanceCount(Deployment deployment) {
 		LOG.debug("Instance Count for Deployment: " + deployment.getSpec().getReplicas());
 		return deployment.getSpec().getReplicas();
@@ -457,37 +521,40 @@ public class K8sUtil {
 	}
 
 	/**
-	 * returns node labels
+	 * returns node labels, shared and read only, from the {@link NodeLabelIndex}
 	 *
 	 * @param name
 	 */
 	public Map<String, String> getNodeLabels(String name) {
+		if (name == null)
+			return null;
+		Map<String, String> labels = NodeLabelIndex.get(name);
+		if (labels != null)
+			return labels;
 		Node node = getNode(name);
 		if (node != null) {
-			return node.getMetadata().getLabels();
+			return NodeLabelIndex.put(node, K8sCache.isSynced());
 		}
 		LOG.debug("Unable to get node labels");
 		return null;
 	}
 
 	/**
-	 * queries and caches node by name
+	 * queries node by name
 	 *
 	 * @param name
 	 * @return
 	 */
 	private Node getNode(String name) {
 		LOG.debug("Getting node: " + name);
+		if (K8sCache.isSynced()) {
+			Node node = K8sCache.getNode(name);
+			if (node != null)
+				return node;
+		}
 		try {
-			if (nodeMap.containsKey(name)) {
-				LOG.debug("Getting node from internal cache");
-				return nodeMap.get(name);
-			}
-
 			LOG.debug("Querying K8s APIServer");
-			Node node = getClient().nodes().withName(name).get();
-			nodeMap.put(name, node);
-			return node;
+			return getClient().nodes().withName(name).get();
 
 		} catch (KubernetesClientException e) {
 			LOG.error(e.getMessage() + ", Status: " + e.getStatus() + ", Code: " + e.getCode());
@@ -497,9 +564,6 @@ public class K8sUtil {
 		return null;
 	}
 
-	// internal cache to store nodes
-	private Map<String, Node> nodeMap = new HashMap<>();
-
 	/**
 	 * merges pod and node labels to return extended attributes for nf service
 	 * instance
@@ -509,13 +573,10 @@ public class K8sUtil {
 	 * @return
 	 */
 	public Map<String, String> mergeLabels(Map<String, String> podLabels, Map<String, String> nodeLabels) {
-		Map<String, String> extendedAttrs = new HashMap<String, String>();
-		extendedAttrs.putAll(podLabels);
-
-		// may be null; if not, merge with pod labels, override if any duplicate keys
+		// may be null; if not, overlay the pod labels, override if any duplicate keys
 		if (nodeLabels != null) {
-			extendedAttrs.putAll(nodeLabels);
+			return new MergedLabels(podLabels, nodeLabels);
 		}
-		return extendedAttrs;
+		return new HashMap<String, String>(podLabels);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.k8s;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pod labels overlaid by the node labels of {@link NodeLabelIndex}, which are
+ * referenced instead of copied. The pod labels hold no key of the node labels;
+ * writing one of those copies the node labels in first. Entries are iterated
+ * read only.
+ */
+class MergedLabels extends AbstractMap<String, String> {
+
+	private final Map<String, String> own;
+	private Map<String, String> shared;
+
+	MergedLabels(Map<String, String> podLabels, Map<String, String> nodeLabels) {
+		this.own = new HashMap<>(podLabels);
+		this.shared = nodeLabels;
+		this.own.keySet().removeAll(nodeLabels.keySet());
+	}
+
+	private void unshare() {
+		if (shared.isEmpty())
+			return;
+		own.putAll(shared);
+		shared = Collections.emptyMap();
+	}
+
+	@Override
+	public String get(Object key) {
+		String value = shared.get(key);
+		return value != null ? value : own.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shared.containsKey(key) || own.containsKey(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		if (shared.containsKey(key))
+			unshare();
+		return own.put(key, value);
+	}
+
+	@Override
+	public String remove(Object key) {
+		if (shared.containsKey(key))
+			unshare();
+		return own.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		own.clear();
+		shared = Collections.emptyMap();
+	}
+
+	@Override
+	public int size() {
+		return own.size() + shared.size();
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				Iterator<Entry<String, String>> owned = own.entrySet().iterator();
+				Iterator<Entry<String, String>> node = shared.entrySet().iterator();
+				return new Iterator<Entry<String, String>>() {
+
+					@Override
+					public boolean hasNext() {
+						return owned.hasNext() || node.hasNext();
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						return owned.hasNext() ? owned.next() : node.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return MergedLabels.this.size();
+			}
+		};
+	}
+}
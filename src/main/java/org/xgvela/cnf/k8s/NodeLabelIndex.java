@@ -0,0 +1,165 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.k8s;
+
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Labels of each node by name, at most NODE_LABEL_CACHE_SIZE nodes with the
+ * least recently used evicted first. The node informer of {@link K8sCache}
+ * keeps entries current and drops the nodes which leave; without it, labels
+ * read from the API server are reloaded after NODE_LABEL_TTL_MS. A node's
+ * labels are held once, read only, and shared by the instances on it.
+ */
+public class NodeLabelIndex {
+
+	private static final Logger LOG = LogManager.getLogger(NodeLabelIndex.class);
+
+	private static final int CAPACITY = Integer.parseInt(System.getenv().getOrDefault("NODE_LABEL_CACHE_SIZE", "1024"));
+	private static final long TTL_MS = Long.parseLong(System.getenv().getOrDefault("NODE_LABEL_TTL_MS", "300000"));
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final LongAdder evictions = new LongAdder();
+
+	// node name -> labels, in access order
+	private static final Map<String, Labels> nodes = new LinkedHashMap<String, Labels>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Labels> eldest) {
+			if (size() <= CAPACITY)
+				return false;
+			evictions.increment();
+			return true;
+		}
+	};
+
+	static final ResourceEventHandler<Node> NODES = new ResourceEventHandler<Node>() {
+
+		@Override
+		public void onAdd(Node node) {
+			put(node, true);
+		}
+
+		@Override
+		public void onUpdate(Node oldNode, Node node) {
+			put(node, true);
+		}
+
+		@Override
+		public void onDelete(Node node, boolean deletedFinalStateUnknown) {
+			remove(node.getMetadata().getName());
+		}
+	};
+
+	private static class Labels {
+
+		private final Map<String, String> labels;
+		private final long expires;
+
+		Labels(Map<String, String> labels, long expires) {
+			this.labels = labels;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * labels of the node, null when not indexed or expired
+	 */
+	public static Map<String, String> get(String name) {
+		synchronized (nodes) {
+			Labels labels = nodes.get(name);
+			if (labels != null && labels.expires > System.currentTimeMillis()) {
+				hits.increment();
+				return labels.labels;
+			}
+			if (labels != null)
+				nodes.remove(name);
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * indexes the labels of the node, unchanged labels keep their map
+	 *
+	 * @param watched whether the node informer keeps the entry current, else
+	 *                it expires
+	 * @return the labels, shared
+	 */
+	public static Map<String, String> put(Node node, boolean watched) {
+		String name = node.getMetadata().getName();
+		Map<String, String> labels = node.getMetadata().getLabels();
+		if (labels == null)
+			labels = Collections.emptyMap();
+		long expires = watched ? Long.MAX_VALUE : System.currentTimeMillis() + TTL_MS;
+
+		synchronized (nodes) {
+			Labels old = nodes.get(name);
+			Map<String, String> shared;
+			if (old != null && old.labels.equals(labels)) {
+				shared = old.labels;
+			} else {
+				shared = labels.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(labels));
+				LOG.debug("Labels of node: [" + name + "] indexed: " + shared);
+			}
+			nodes.put(name, new Labels(shared, Math.max(expires, old == null ? 0 : old.expires)));
+			return shared;
+		}
+	}
+
+	static void remove(String name) {
+		synchronized (nodes) {
+			if (nodes.remove(name) != null) {
+				evictions.increment();
+				LOG.debug("Node: [" + name + "] left, labels evicted");
+			}
+		}
+	}
+
+	static void clear() {
+		synchronized (nodes) {
+			nodes.clear();
+		}
+	}
+
+	public static int size() {
+		synchronized (nodes) {
+			return nodes.size();
+		}
+	}
+
+	public static long hits() {
+		return hits.sum();
+	}
+
+	public static long misses() {
+		return misses.sum();
+	}
+
+	public static long evictions() {
+		return evictions.sum();
+	}
+}
@@ -0,0 +1,136 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.k8s;
+
+import io.fabric8.kubernetes.api.model.HasMetadata;
+import io.fabric8.kubernetes.api.model.apps.DaemonSet;
+import io.fabric8.kubernetes.api.model.apps.Deployment;
+import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Number of scheduled Deployments, StatefulSets and DaemonSets of each NF in
+ * each namespace, kept up to date by the workload informers of
+ * {@link K8sCache}. The minActiveCount of an NF is read from here instead of
+ * listing the workloads of its namespace.
+ */
+public class WorkloadIndex {
+
+	private static final Logger LOG = LogManager.getLogger(WorkloadIndex.class);
+
+	// namespace/nfId -> scheduled workloads
+	private static final Map<String, Integer> counts = new ConcurrentHashMap<>();
+
+	// kind/namespace/name -> nfId of each counted workload
+	private static final Map<String, String> counted = new ConcurrentHashMap<>();
+
+	static final ResourceEventHandler<Deployment> DEPLOYMENTS = new Handler<>(
+			deployment -> replicas(deployment.getSpec().getReplicas()) > 0);
+	static final ResourceEventHandler<StatefulSet> STATEFUL_SETS = new Handler<>(
+			statefulSet -> replicas(statefulSet.getSpec().getReplicas()) > 0);
+	static final ResourceEventHandler<DaemonSet> DAEMON_SETS = new Handler<>(
+			daemonSet -> daemonSet.getStatus() != null
+					&& replicas(daemonSet.getStatus().getCurrentNumberScheduled()) > 0);
+
+	/**
+	 * whether counts are complete, i.e. the workload informers have synced
+	 */
+	public static boolean isReady() {
+		return K8sCache.isSynced();
+	}
+
+	/**
+	 * scheduled workloads of the NF in the namespace
+	 */
+	public static int count(String namespace, String nfId) {
+		return counts.getOrDefault(key(namespace, nfId), 0);
+	}
+
+	private static String key(String namespace, String nfId) {
+		return namespace + "/" + nfId;
+	}
+
+	static void clear() {
+		synchronized (counts) {
+			counts.clear();
+			counted.clear();
+		}
+	}
+
+	private static int replicas(Integer replicas) {
+		return replicas == null ? 0 : replicas;
+	}
+
+	private static void update(HasMetadata workload, boolean scheduled) {
+		String key = workload.getClass().getSimpleName() + "/" + workload.getMetadata().getNamespace() + "/"
+				+ workload.getMetadata().getName();
+		String nfId = scheduled ? K8sCache.nfId(workload) : null;
+
+		synchronized (counts) {
+			String old = counted.get(key);
+			if (old == null ? nfId == null : old.equals(nfId))
+				return;
+
+			if (old != null) {
+				counted.remove(key);
+				add(old, workload.getMetadata().getNamespace(), -1);
+			}
+			if (nfId != null) {
+				counted.put(key, nfId);
+				add(nfId, workload.getMetadata().getNamespace(), 1);
+			}
+			LOG.debug("Workload " + key + " counted for NF: " + nfId + ", was: " + old);
+		}
+	}
+
+	private static void add(String nfId, String namespace, int delta) {
+		String key = key(namespace, nfId);
+		int count = counts.getOrDefault(key, 0) + delta;
+		if (count > 0)
+			counts.put(key, count);
+		else
+			counts.remove(key);
+	}
+
+	private static class Handler<T extends HasMetadata> implements ResourceEventHandler<T> {
+
+		private final Predicate<T> scheduled;
+
+		Handler(Predicate<T> scheduled) {
+			this.scheduled = scheduled;
+		}
+
+		@Override
+		public void onAdd(T workload) {
+			update(workload, scheduled.test(workload));
+		}
+
+		@Override
+		public void onUpdate(T oldWorkload, T workload) {
+			update(workload, scheduled.test(workload));
+		}
+
+		@Override
+		public void onDelete(T workload, boolean deletedFinalStateUnknown) {
+			update(workload, false);
+		}
+	}
+}
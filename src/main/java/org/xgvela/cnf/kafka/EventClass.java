@@ -0,0 +1,37 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+/**
+ * priority class of a pod event, declared from the most to the least urgent
+ */
+public enum EventClass {
+
+	// pod deleted or run to completion
+	TERMINATION,
+
+	// pod added, or its readiness changed
+	READINESS,
+
+	// no snapshot to tell what changed
+	ROUTINE,
+
+	// neither phase nor readiness changed, e.g. labels or annotations only
+	COSMETIC;
+
+	public String getTag() {
+		return name().toLowerCase();
+	}
+}
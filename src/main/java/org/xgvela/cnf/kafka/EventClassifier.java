@@ -0,0 +1,66 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import io.fabric8.kubernetes.client.Watcher.Action;
+import org.apache.kafka.common.TopicPartition;
+import org.xgvela.cnf.topo.PodPhase;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * classifies pod events on arrival; readiness changes are told apart from
+ * cosmetic updates by the readiness last seen in a snapshot of the pod,
+ * kept by partition until the pod terminates or the partition is revoked
+ */
+class EventClassifier {
+
+	private final Map<TopicPartition, Map<String, Boolean>> lastReady = new ConcurrentHashMap<>();
+
+	EventClass classify(PodEvent event) {
+		PodDetails podDetails = event.getPodDetails();
+		String key = event.getPodKey();
+		Map<String, Boolean> seen = lastReady.computeIfAbsent(event.getPartition(),
+				p -> new ConcurrentHashMap<>());
+
+		PodSnapshot snapshot = podDetails.getSnapshot();
+		if (podDetails.getAction() == Action.DELETED || (snapshot != null
+				&& (PodPhase.SUCCEEDED.toString().equals(snapshot.getPhase())
+						|| PodPhase.FAILED.toString().equals(snapshot.getPhase())))) {
+			seen.remove(key);
+			return EventClass.TERMINATION;
+		}
+
+		Boolean previous = snapshot != null && snapshot.getReady() != null
+				? seen.put(key, snapshot.getReady()) : seen.get(key);
+
+		if (podDetails.getAction() == Action.ADDED)
+			return EventClass.READINESS;
+		if (snapshot == null || snapshot.getReady() == null)
+			return EventClass.ROUTINE;
+		// first snapshot of the pod, only a pod which is not ready is worth hurrying
+		if (previous == null)
+			return snapshot.getReady() ? EventClass.ROUTINE : EventClass.READINESS;
+		return previous.equals(snapshot.getReady()) ? EventClass.COSMETIC : EventClass.READINESS;
+	}
+
+	/**
+	 * forgets the readiness seen on a partition which is no longer owned
+	 */
+	void drop(TopicPartition partition) {
+		lastReady.remove(partition);
+	}
+}
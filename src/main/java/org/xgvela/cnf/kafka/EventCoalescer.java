@@ -0,0 +1,92 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import io.fabric8.kubernetes.client.Watcher.Action;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds the records of one poll batch into the net effect per pod. Every event
+ * handler re-reads the pod, so only the last of consecutive MODIFIED events
+ * matters, MODIFIED events following an ADDED are part of the add, and an
+ * ADDED followed by DELETED within the batch cancels out.
+ */
+public class EventCoalescer {
+
+	private final Map<String, LinkedList<PodEvent>> pods = new LinkedHashMap<>();
+	private final List<PodEvent> cancelled = new ArrayList<>();
+	private int coalesced = 0;
+
+	public void add(ConsumerRecord<String, PodDetails> record) {
+		PodDetails podDetails = record.value();
+		TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+		PodEvent event = new PodEvent(podDetails, partition, record.offset());
+
+		LinkedList<PodEvent> net = pods.computeIfAbsent(
+				partition.partition() + "/" + podDetails.getNamespace() + "/" + podDetails.getPodName(),
+				key -> new LinkedList<>());
+		PodEvent last = net.peekLast();
+		Action previous = last == null ? null : last.getPodDetails().getAction();
+		Action current = podDetails.getAction();
+
+		if (previous == Action.ADDED && current == Action.MODIFIED) {
+			// still an add, but of the latest pod details
+			podDetails.setAction(Action.ADDED);
+			net.set(net.size() - 1, event.absorb(last));
+			coalesced++;
+
+		} else if (previous == Action.ADDED && current == Action.DELETED) {
+			cancelled.add(net.removeLast().absorb(event));
+			coalesced += 2;
+
+		} else if (previous == Action.MODIFIED && (current == Action.MODIFIED || current == Action.DELETED)) {
+			net.set(net.size() - 1, event.absorb(last));
+			coalesced++;
+
+		} else {
+			net.add(event);
+		}
+	}
+
+	/**
+	 * net events, in order of the first record seen for each pod
+	 */
+	public List<PodEvent> getEvents() {
+		List<PodEvent> events = new ArrayList<>();
+		pods.values().forEach(events::addAll);
+		return events;
+	}
+
+	/**
+	 * events which cancelled out, their offsets need no processing
+	 */
+	public List<PodEvent> getCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * number of records which will not reach the topology manager on their own
+	 */
+	public int getCoalesced() {
+		return coalesced;
+	}
+}
@@ -0,0 +1,578 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.Constants;
+import org.xgvela.cnf.k8s.ConstructTree;
+import org.xgvela.cnf.util.TopoManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans pod events out to a pool of worker lanes through a {@link FairScheduler}
+ * with one queue per NF (or per namespace). The events of one NF are handled
+ * in order by one lane at a time while different NFs progress in parallel, and
+ * NFs take turns so that a burst of one NF does not starve the others. Kafka
+ * offsets are committed per partition only up to the lowest offset which some
+ * lane has not finished yet; an event is finished once the topology writes it
+ * queued are in ZK, and one whose writes ZK rejected is moved to the dead
+ * letter topic. Events which fail with a transient error are
+ * queued again after the backoff of the {@link RetryHandler}, their offsets
+ * stay in flight meanwhile; the retries of a revoked partition are dropped
+ * and its events redelivered to the next owner.
+ * <p>
+ * Events are prepared, i.e. their pod and K8s lookups fetched, by
+ * {@link TopoManager#prepare} as soon as they are queued, so the lanes only
+ * wait on the network for events prepared too late or not at all.
+ * <p>
+ * Within an NF, events are taken by {@link EventClass} so that terminations
+ * and readiness changes do not wait behind cosmetic updates; the events of one
+ * pod keep their order.
+ * <p>
+ * NF queues are bounded. Once the queued events cross the high watermark, or
+ * applying an event takes longer than the latency threshold, the listener
+ * container is paused so the consumer keeps polling (and stays in the group)
+ * without fetching; it is resumed when the lanes drain to the low watermark.
+ * The consumer thread never waits for a full NF queue: the event, and the
+ * events of its partition behind it, are held back and the partition is
+ * paused until the NF queue has room again.
+ * <p>
+ * EVENT_LANES sets the number of lanes, 2 unless given.
+ */
+@Component
+public class EventDispatcher {
+
+    private static final Logger LOG = LogManager.getLogger(EventDispatcher.class);
+
+    private static final int LANES = Integer.parseInt(System.getenv().getOrDefault("EVENT_LANES", "2"));
+    private static final long COMMIT_INTERVAL_MS = 1000;
+    private static final long REVOKE_DRAIN_TIMEOUT_MS = 30000;
+
+    // backpressure thresholds, the capacity bounds each lane and is only reached if a pause does not take effect
+    private static final int QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("EVENT_QUEUE_CAPACITY", "2000"));
+    private static final int QUEUE_HIGH = Integer.parseInt(System.getenv().getOrDefault("EVENT_QUEUE_HIGH", "1000"));
+    private static final int QUEUE_LOW = Integer.parseInt(System.getenv().getOrDefault("EVENT_QUEUE_LOW", "200"));
+    private static final long LATENCY_THRESHOLD_MS = Long.parseLong(System.getenv().getOrDefault("EVENT_LATENCY_THRESHOLD_MS", "10000"));
+
+    // events are queued per NF name unless set to namespace; weights are given as name=weight,...
+    private static final boolean FAIR_BY_NAMESPACE = "namespace".equalsIgnoreCase(System.getenv().getOrDefault("EVENT_FAIR_KEY", "nf"));
+    private static final String FAIR_WEIGHTS = System.getenv().getOrDefault("EVENT_FAIR_WEIGHTS", "");
+
+    @Autowired
+    TopoManager manager;
+
+    @Autowired
+    MeterRegistry registry;
+
+    @Autowired
+    KafkaListenerEndpointRegistry listenerRegistry;
+
+    @Autowired
+    RetryHandler retry;
+
+    @Autowired
+    PartitionOwnership ownership;
+
+    private final Map<TopicPartition, OffsetTracker> trackers = new ConcurrentHashMap<>();
+
+    // events waiting for their next attempt by partition, and the partitions being revoked; guarded by retries
+    private final Map<TopicPartition, Map<PodEvent, ScheduledFuture<?>>> retries = new HashMap<>();
+    private final Set<TopicPartition> revoking = new HashSet<>();
+
+    // events held back as their NF queue was full, in partition order; consumer thread only
+    private final Map<TopicPartition, Deque<PodEvent>> backlogs = new HashMap<>();
+    private ScheduledExecutorService retryTimer;
+    private FairScheduler scheduler;
+    private Lane[] lanes;
+    private final Map<String, Timer> queueWaits = new ConcurrentHashMap<>();
+    private final Map<Consumer<?, ?>, Long> lastCommits = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private volatile long lastLatencyMs = 0;
+    private volatile long pausedSince = 0;
+    private volatile long pausedTotalMs = 0;
+
+    private Counter coalescedEvents;
+    private Counter appliedEvents;
+    private final Map<EventClass, Timer> latencies = new EnumMap<>(EventClass.class);
+    private final EventClassifier classifier = new EventClassifier();
+
+    @PostConstruct
+    public void start() {
+        coalescedEvents = Counter.builder("tmaas.events.coalesced")
+                .description("Pod events folded into another event of the same pod").register(registry);
+        appliedEvents = Counter.builder("tmaas.events.applied")
+                .description("Pod events applied to the topology tree").register(registry);
+        for (EventClass eventClass : EventClass.values()) {
+            latencies.put(eventClass, Timer.builder("tmaas.events.latency").tag("class", eventClass.getTag())
+                    .description("Time from dispatch until a pod event is applied").publishPercentileHistogram()
+                    .register(registry));
+        }
+        Gauge.builder("tmaas.ingest.queue.depth", queued, AtomicInteger::get)
+                .description("Pod events queued for the event lanes").register(registry);
+        Gauge.builder("tmaas.ingest.paused", paused, p -> p.get() ? 1 : 0)
+                .description("Whether consumption is paused for backpressure").register(registry);
+        Gauge.builder("tmaas.ingest.latency", this, d -> d.lastLatencyMs)
+                .baseUnit("milliseconds").description("Time taken to apply the last pod event").register(registry);
+        FunctionCounter.builder("tmaas.ingest.paused.time", this, d -> d.pausedMillis() / 1000.0)
+                .baseUnit("seconds").description("Time consumption spent paused for backpressure").register(registry);
+
+        scheduler = new FairScheduler(Math.max(1, QUEUE_CAPACITY), parseWeights(FAIR_WEIGHTS));
+        retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "event-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int count = Math.max(1, LANES);
+        LOG.info("Starting " + count + " event lane(s), fair by " + (FAIR_BY_NAMESPACE ? "namespace" : "NF"));
+        lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i);
+            lanes[i].start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Lane lane : lanes) {
+            lane.interrupt();
+        }
+        retryTimer.shutdownNow();
+    }
+
+    static Map<String, Integer> parseWeights(String weights) {
+        Map<String, Integer> parsed = new HashMap<>();
+        for (String entry : weights.split(",")) {
+            String[] pair = entry.trim().split("=");
+            if (pair.length != 2)
+                continue;
+            try {
+                parsed.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring fair scheduling weight: " + entry);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * queues the event behind the other events of its NF, called from the consumer thread
+     */
+    public void dispatch(PodDetails podDetails, TopicPartition partition, long offset) {
+        dispatch(new PodEvent(podDetails, partition, offset));
+    }
+
+    public void dispatch(PodEvent event) {
+        event.setEventClass(classifier.classify(event));
+        event.setQueuedAt(System.nanoTime());
+        // a retry reads the pod back when committed, whatever was gathered ahead may be outdated by then
+        if (event.getAttempt() == 0)
+            event.setContext(manager.prepare(event.getPodDetails()));
+
+        OffsetTracker tracker = trackers.computeIfAbsent(event.getPartition(), p -> new OffsetTracker());
+        for (long offset : event.getOffsets()) {
+            tracker.begin(offset);
+        }
+        queued.incrementAndGet();
+        Deque<PodEvent> backlog = backlogs.get(event.getPartition());
+        if (backlog != null) {
+            backlog.addLast(event);
+        } else if (!scheduler.offer(flowOf(event.getPodDetails()), event)) {
+            LOG.warn("Queue of " + flowOf(event.getPodDetails()) + " full, holding back partition " + event.getPartition());
+            backlogs.computeIfAbsent(event.getPartition(), p -> new ArrayDeque<>()).addLast(event);
+        }
+        if (queued.get() >= QUEUE_HIGH)
+            pause("queue depth " + queued.get());
+    }
+
+    /**
+     * queues the net events of a poll batch, called from the consumer thread
+     */
+    public void dispatch(EventCoalescer coalescer) {
+        coalescer.getCancelled().forEach(event -> {
+            OffsetTracker tracker = trackers.computeIfAbsent(event.getPartition(), p -> new OffsetTracker());
+            for (long offset : event.getOffsets()) {
+                tracker.skip(offset);
+            }
+        });
+        coalescer.getEvents().forEach(this::dispatch);
+        coalescedEvents.increment(coalescer.getCoalesced());
+    }
+
+    /**
+     * holds a failed event for its next attempt; a dead letter, or an event of
+     * a partition being revoked, is let go
+     *
+     * @return whether the offsets of the event stay in flight
+     */
+    private boolean retry(PodEvent event, Exception cause) {
+        TopicPartition partition = event.getPartition();
+        synchronized (retries) {
+            OffsetTracker tracker = trackers.get(partition);
+            if (tracker == null)
+                return false;
+            if (revoking.contains(partition)) {
+                tracker.abandon(event.getOffsets());
+                return true;
+            }
+        }
+
+        long delay = retry.nextAttempt(event, cause);
+        if (delay < 0) {
+            retry.deadLetter(event, cause);
+            return false;
+        }
+        event.setAttempt(event.getAttempt() + 1);
+        synchronized (retries) {
+            OffsetTracker tracker = trackers.get(partition);
+            if (tracker == null)
+                return false;
+            if (revoking.contains(partition)) {
+                tracker.abandon(event.getOffsets());
+                return true;
+            }
+            retries.computeIfAbsent(partition, p -> new HashMap<>()).put(event,
+                    retryTimer.schedule(() -> requeue(event), delay, TimeUnit.MILLISECONDS));
+        }
+        return true;
+    }
+
+    // queues a due retry again, unless its partition was revoked meanwhile
+    private void requeue(PodEvent event) {
+        synchronized (retries) {
+            Map<PodEvent, ScheduledFuture<?>> pending = retries.get(event.getPartition());
+            if (pending == null || pending.remove(event) == null)
+                return;
+        }
+        LOG.debug("Retrying " + event);
+        event.setQueuedAt(System.nanoTime());
+        queued.incrementAndGet();
+        try {
+            scheduler.put(flowOf(event.getPodDetails()), event);
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            OffsetTracker tracker = trackers.get(event.getPartition());
+            if (tracker != null)
+                tracker.abandon(event.getOffsets());
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (queued.get() >= QUEUE_HIGH)
+            pause("queue depth " + queued.get());
+    }
+
+    // pause and resume come from the consumer thread and the lanes, the flag has to follow the container
+    private synchronized void pause(String reason) {
+        MessageListenerContainer container = container();
+        if (container == null || paused.get())
+            return;
+        paused.set(true);
+        pausedSince = System.currentTimeMillis();
+        LOG.warn("Pausing consumption, " + reason);
+        container.pause();
+    }
+
+    private synchronized void resume() {
+        MessageListenerContainer container = container();
+        if (container == null || !paused.get())
+            return;
+        paused.set(false);
+        long pausedFor = System.currentTimeMillis() - pausedSince;
+        pausedTotalMs += pausedFor;
+        LOG.info("Resuming consumption after " + pausedFor + " ms");
+        container.resume();
+    }
+
+    /**
+     * lanes resume the consumer once drained to the low watermark and applying
+     * events is fast again; an empty queue resumes regardless of latency
+     */
+    private void afterApply(long latencyMs) {
+        lastLatencyMs = latencyMs;
+        int depth = queued.get();
+        if (latencyMs > LATENCY_THRESHOLD_MS && depth > 0)
+            pause("event took " + latencyMs + " ms");
+        else if (paused.get() && (depth == 0 || (depth <= QUEUE_LOW && latencyMs <= LATENCY_THRESHOLD_MS)))
+            resume();
+    }
+
+    private long pausedMillis() {
+        return pausedTotalMs + (paused.get() ? System.currentTimeMillis() - pausedSince : 0);
+    }
+
+    private MessageListenerContainer container() {
+        return listenerRegistry.getListenerContainer(KafkaConfiguration.BATCH_LISTENER
+                ? Constants.KAFKA_BATCH_LISTENER_ID : Constants.KAFKA_LISTENER_ID);
+    }
+
+    private String flowOf(PodDetails podDetails) {
+        String key = FAIR_BY_NAMESPACE ? podDetails.getNamespace() : podDetails.getNfName();
+        return key == null ? "" : key;
+    }
+
+    private Timer queueWait(String flow) {
+        return queueWaits.computeIfAbsent(flow, f -> Timer.builder("tmaas.events.queue.wait")
+                .tag(FAIR_BY_NAMESPACE ? "namespace" : "nf", f)
+                .description("Time pod events wait for a lane").register(registry));
+    }
+
+    /**
+     * commits processed offsets of the partitions assigned to the consumer,
+     * throttled to once per commit interval; must be called from the consumer
+     * thread
+     */
+    public void commit(Consumer<?, ?> consumer) {
+        drainBacklogs(consumer);
+
+        long now = System.currentTimeMillis();
+        Long lastCommit = lastCommits.get(consumer);
+        if (lastCommit != null && now - lastCommit < COMMIT_INTERVAL_MS)
+            return;
+        lastCommits.put(consumer, now);
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = committable(consumer.assignment());
+        if (offsets.isEmpty())
+            return;
+
+        consumer.commitAsync(offsets, (committed, e) -> {
+            if (e != null)
+                LOG.error("Offset commit failed for " + committed + ": " + e.getMessage());
+            else
+                LOG.debug("Committed offsets: " + committed);
+        });
+    }
+
+    /**
+     * queues held back events whose NF queue has room again; partitions with
+     * events still held back are paused, the others resumed unless the
+     * container is paused as a whole
+     */
+    private void drainBacklogs(Consumer<?, ?> consumer) {
+        if (backlogs.isEmpty())
+            return;
+        Set<TopicPartition> held = new HashSet<>();
+        Set<TopicPartition> drained = new HashSet<>();
+        Iterator<Map.Entry<TopicPartition, Deque<PodEvent>>> iterator = backlogs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TopicPartition, Deque<PodEvent>> backlog = iterator.next();
+            Deque<PodEvent> events = backlog.getValue();
+            while (!events.isEmpty() && scheduler.offer(flowOf(events.peekFirst().getPodDetails()), events.peekFirst()))
+                events.pollFirst();
+            if (events.isEmpty()) {
+                iterator.remove();
+                drained.add(backlog.getKey());
+            } else {
+                held.add(backlog.getKey());
+            }
+        }
+
+        held.retainAll(consumer.assignment());
+        drained.retainAll(consumer.assignment());
+        if (!held.isEmpty())
+            consumer.pause(held);
+        if (!drained.isEmpty() && !paused.get()) {
+            LOG.info("Resuming partitions " + drained + ", held back events queued");
+            consumer.resume(drained);
+        }
+    }
+
+    /**
+     * drops the retries and held back events of partitions being revoked, waits for lanes to finish
+     * their other events and commits their final position, which stops at the
+     * first dropped retry; must be called from the consumer thread
+     */
+    public void revoke(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            classifier.drop(partition);
+            Deque<PodEvent> backlog = backlogs.remove(partition);
+            OffsetTracker tracker = trackers.get(partition);
+            if (backlog == null || tracker == null)
+                continue;
+            queued.addAndGet(-backlog.size());
+            backlog.forEach(event -> tracker.abandon(event.getOffsets()));
+        }
+        synchronized (retries) {
+            revoking.addAll(partitions);
+            for (TopicPartition partition : partitions) {
+                Map<PodEvent, ScheduledFuture<?>> pending = retries.remove(partition);
+                OffsetTracker tracker = trackers.get(partition);
+                if (pending == null || tracker == null)
+                    continue;
+                pending.forEach((event, future) -> {
+                    future.cancel(false);
+                    tracker.abandon(event.getOffsets());
+                });
+                LOG.info("Partition " + partition + " revoked, " + pending.size()
+                        + " pending retr(ies) left to the next owner");
+            }
+        }
+        try {
+            drain(consumer, partitions);
+        } finally {
+            synchronized (retries) {
+                revoking.removeAll(partitions);
+            }
+        }
+    }
+
+    private void drain(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            OffsetTracker tracker = trackers.get(partition);
+            try {
+                if (tracker != null && !tracker.awaitDrained(REVOKE_DRAIN_TIMEOUT_MS))
+                    LOG.warn("Partition " + partition + " revoked with " + tracker.inFlight()
+                            + " event(s) still in flight, they will be redelivered");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = committable(partitions);
+        try {
+            if (!offsets.isEmpty())
+                consumer.commitSync(offsets);
+        } catch (Exception e) {
+            LOG.error("Offset commit on revoke failed: " + e.getMessage(), e);
+        }
+        synchronized (retries) {
+            partitions.forEach(trackers::remove);
+        }
+    }
+
+    private Map<TopicPartition, OffsetAndMetadata> committable(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            OffsetTracker tracker = trackers.get(partition);
+            if (tracker == null)
+                continue;
+            long offset = tracker.committable();
+            if (offset >= 0) {
+                offsets.put(partition, new OffsetAndMetadata(offset));
+                tracker.committed(offset);
+            }
+        }
+        return offsets;
+    }
+
+    @org.springframework.context.event.EventListener
+    public void onIdle(ListenerContainerIdleEvent event) {
+        // lanes may have finished work after the last poll returned records
+        if (event.getConsumer() != null)
+            commit(event.getConsumer());
+    }
+
+    /**
+     * completes the offsets of an applied event once its writes are in ZK; if
+     * ZK rejected them the event is moved to the dead letter topic first, off
+     * the writer thread
+     */
+    private void completeWhenWritten(PodEvent event, OffsetTracker tracker, CompletableFuture<Void> written) {
+        if (written == null) {
+            tracker.complete(event.getOffsets());
+            return;
+        }
+        written.whenComplete((done, e) -> {
+            if (e == null) {
+                tracker.complete(event.getOffsets());
+                return;
+            }
+            retryTimer.execute(() -> {
+                retry.deadLetter(event, e instanceof Exception ? (Exception) e : new IllegalStateException(e));
+                tracker.complete(event.getOffsets());
+            });
+        });
+    }
+
+    private class Lane extends Thread {
+
+        Lane(int index) {
+            super("event-lane-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ConstructTree.kafkaListenerLatch.await();
+                while (!isInterrupted()) {
+                    FairScheduler.Flow flow = scheduler.acquire();
+                    PodEvent event = scheduler.poll(flow);
+                    queued.decrementAndGet();
+                    long start = System.nanoTime();
+                    queueWait(flow.getKey()).record(start - event.getQueuedAt(), TimeUnit.NANOSECONDS);
+                    boolean retried = false;
+                    CompletableFuture<Void> written = null;
+                    try {
+                        ownership.record(event.getPartition(), manager.getNfId(event.getPodDetails().getNfName()));
+                        written = manager.updateManagedElement(event.getPodDetails(), event.getAttempt() > 0
+                                ? manager.refresh(event.getPodDetails()) : manager.prepared(event.getContext()));
+                        appliedEvents.increment();
+                        latencies.get(event.getEventClass()).record(System.nanoTime() - event.getQueuedAt(),
+                                TimeUnit.NANOSECONDS);
+                    } catch (Exception e) {
+                        LOG.error(e.getMessage(), e);
+                        retried = retry(event, e);
+                    } finally {
+                        OffsetTracker tracker = trackers.get(event.getPartition());
+                        if (tracker != null && !retried)
+                            completeWhenWritten(event, tracker, written);
+                        scheduler.release(flow);
+                        afterApply(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.debug(getName() + " stopped");
+            }
+        }
+    }
+}
@@ -15,8 +15,9 @@
 package org.xgvela.cnf.kafka;
 
 import org.xgvela.cnf.Constants;
-import org.xgvela.cnf.k8s.ConstructTree;
-import org.xgvela.cnf.util.TopoManager;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -26,6 +27,8 @@ import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
+
 @Component
 public class EventListener {
 
@@ -33,18 +36,40 @@ public class EventListener {
     public static final String X_CORRELATION_ID = "X-CorrelationId";
 
     @Autowired
-    TopoManager manager;
+    EventDispatcher dispatcher;
 
-    @KafkaListener(topics = Constants.KAFKA_TOPIC, containerFactory = "kafkaListenerContainerFactory")
+    @KafkaListener(id = Constants.KAFKA_LISTENER_ID, topics = Constants.KAFKA_TOPIC, containerFactory = "kafkaListenerContainerFactory",
+            autoStartup = "#{!T(org.xgvela.cnf.kafka.KafkaConfiguration).BATCH_LISTENER}")
     private void listen(@Payload PodDetails podDetails, @Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition,
-                        @Header(X_CORRELATION_ID) String messageCorrelationId,@Header(KafkaHeaders.OFFSET) String offset) {
+                        @Header(X_CORRELATION_ID) String messageCorrelationId, @Header(KafkaHeaders.OFFSET) long offset,
+                        Consumer<?, ?> consumer) {
 
         try {
             LOG.debug("Partition: " + partition + ", KafkaMsg Offset: " + offset + ", CorrelationId: " + messageCorrelationId + ", " + podDetails.toString());
-            ConstructTree.kafkaListenerLatch.await();
-            manager.updateManagedElement(podDetails);
+            dispatcher.dispatch(podDetails, new TopicPartition(Constants.KAFKA_TOPIC, partition), offset);
+        } catch (Exception e) {
+            LOG.error(e.getMessage(), e);
+        } finally {
+            dispatcher.commit(consumer);
+        }
+    }
+
+    @KafkaListener(id = Constants.KAFKA_BATCH_LISTENER_ID, topics = Constants.KAFKA_TOPIC, containerFactory = "kafkaBatchListenerContainerFactory",
+            autoStartup = "#{T(org.xgvela.cnf.kafka.KafkaConfiguration).BATCH_LISTENER}")
+    private void listenBatch(List<ConsumerRecord<String, PodDetails>> records, Consumer<?, ?> consumer) {
+
+        try {
+            EventCoalescer coalescer = new EventCoalescer();
+            for (ConsumerRecord<String, PodDetails> record : records) {
+                LOG.debug("Partition: " + record.partition() + ", KafkaMsg Offset: " + record.offset() + ", " + record.value());
+                coalescer.add(record);
+            }
+            LOG.debug("Batch of " + records.size() + " records coalesced into " + coalescer.getEvents().size() + " events");
+            dispatcher.dispatch(coalescer);
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
+        } finally {
+            dispatcher.commit(consumer);
         }
     }
 
@@ -0,0 +1,173 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Weighted round robin over per-flow queues, a flow being an NF or a
+ * namespace. Workers check out one flow at a time and a checked out flow is
+ * not handed to another worker, so the events of a flow are applied one after
+ * the other. A flow is served up to its weight in events per turn before it
+ * goes to the back of the ring, which keeps a noisy flow from starving the
+ * others.
+ */
+class FairScheduler {
+
+	static class Flow {
+
+		private final String key;
+		private final int weight;
+		private final PodEventQueue events = new PodEventQueue();
+		private int deficit;
+		private boolean busy;
+		private boolean queued;
+
+		Flow(String key, int weight) {
+			this.key = key;
+			this.weight = weight;
+		}
+
+		String getKey() {
+			return key;
+		}
+	}
+
+	private final int capacity;
+	private final Map<String, Integer> weights;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private final Map<String, Flow> flows = new HashMap<>();
+	private final Deque<Flow> ring = new ArrayDeque<>();
+
+	/**
+	 * @param capacity bound of each flow queue
+	 * @param weights  events per turn by flow key, flows not listed get one
+	 */
+	FairScheduler(int capacity, Map<String, Integer> weights) {
+		this.capacity = capacity;
+		this.weights = weights;
+	}
+
+	void put(String key, PodEvent event) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			Flow flow = flow(key);
+			while (flow.events.size() >= capacity) {
+				notFull.await();
+				flow = flow(key);
+			}
+			add(flow, event);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * queues the event unless its flow is full, without waiting
+	 *
+	 * @return false if the flow is full
+	 */
+	boolean offer(String key, PodEvent event) {
+		lock.lock();
+		try {
+			Flow flow = flow(key);
+			if (flow.events.size() >= capacity)
+				return false;
+			add(flow, event);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Flow flow(String key) {
+		return flows.computeIfAbsent(key, k -> new Flow(k, Math.max(1, weights.getOrDefault(k, 1))));
+	}
+
+	private void add(Flow flow, PodEvent event) {
+		flow.events.add(event);
+		if (!flow.busy && !flow.queued) {
+			flow.queued = true;
+			ring.addLast(flow);
+			notEmpty.signal();
+		}
+	}
+
+	/**
+	 * checks out the next flow with pending events, to be given back through
+	 * {@link #release(Flow)}
+	 */
+	Flow acquire() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (ring.isEmpty())
+				notEmpty.await();
+			Flow flow = ring.pollFirst();
+			flow.queued = false;
+			flow.busy = true;
+			if (flow.deficit <= 0)
+				flow.deficit = flow.weight;
+			return flow;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	PodEvent poll(Flow flow) {
+		lock.lock();
+		try {
+			PodEvent event = flow.events.poll();
+			notFull.signalAll();
+			return event;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * gives a flow back; it stays at the front while its turn lasts, then goes
+	 * to the back of the ring
+	 */
+	void release(Flow flow) {
+		lock.lock();
+		try {
+			flow.busy = false;
+			flow.deficit--;
+			if (flow.events.isEmpty()) {
+				flow.deficit = 0;
+				flows.remove(flow.key);
+				return;
+			}
+
+			flow.queued = true;
+			if (flow.deficit > 0)
+				ring.addFirst(flow);
+			else
+				ring.addLast(flow);
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -14,17 +14,30 @@
 
 package org.xgvela.cnf.kafka;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.admin.NewTopic;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.config.TopicBuilder;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
-import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.MicrometerConsumerListener;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.listener.ContainerProperties.AckMode;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import org.xgvela.cnf.Constants;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -36,10 +49,19 @@ public class KafkaConfiguration {
     private static String bootstrapServers = String.valueOf(System.getenv("KAFKA_SVC_FQDN"));
     private static final String groupId = "topo-engine";
 
+    // consume whole poll batches and coalesce them per pod instead of record by record
+    public static final boolean BATCH_LISTENER = Boolean.parseBoolean(System.getenv().getOrDefault("KAFKA_BATCH_LISTENER", "false"));
+
+    private static final short RETRY_REPLICAS = Short.parseShort(System.getenv().getOrDefault("KAFKA_RETRY_REPLICAS", "1"));
+
     @Autowired
     RebalanceListener consumerRebalanceListener;
     @Autowired
     KafkaListenerEndpointRegistry registry;
+    @Autowired
+    PodRecordFilter recordFilter;
+    @Autowired
+    MeterRegistry meterRegistry;
 
 
     public KafkaListenerEndpointRegistry getRegistry() {
@@ -52,22 +74,68 @@ public class KafkaConfiguration {
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, new JsonDeserializer<>(PodDetails.class));
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, PodDetailsDeserializer.class);
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        // offsets are committed by the EventDispatcher once lanes finish processing
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         return props;
     }
 
     @Bean
     public ConsumerFactory<String, PodDetails> consumerFactory() {
-        return new DefaultKafkaConsumerFactory<String, PodDetails>(consumerConfigs(), new StringDeserializer(),
-                new JsonDeserializer<>(PodDetails.class));
+        DefaultKafkaConsumerFactory<String, PodDetails> factory = new DefaultKafkaConsumerFactory<String, PodDetails>(
+                consumerConfigs(), new StringDeserializer(), new PodDetailsDeserializer());
+        // binds the client metrics, per partition lag included (kafka.consumer.fetch.manager.records.lag)
+        factory.addListener(new MicrometerConsumerListener<String, PodDetails>(meterRegistry));
+        return factory;
     }
 
     @Bean
     public ConcurrentKafkaListenerContainerFactory<String, PodDetails> kafkaListenerContainerFactory() {
+        return listenerContainerFactory(false);
+    }
+
+    @Bean
+    public ConcurrentKafkaListenerContainerFactory<String, PodDetails> kafkaBatchListenerContainerFactory() {
+        return listenerContainerFactory(true);
+    }
+
+    private ConcurrentKafkaListenerContainerFactory<String, PodDetails> listenerContainerFactory(boolean batch) {
         ConcurrentKafkaListenerContainerFactory<String, PodDetails> factory = new ConcurrentKafkaListenerContainerFactory<String, PodDetails>();
         factory.setConsumerFactory(consumerFactory());
+        factory.setBatchListener(batch);
+        // offsets of discarded records are committed along with the next processed one
+        factory.setRecordFilterStrategy(recordFilter);
         factory.getContainerProperties().setConsumerRebalanceListener(consumerRebalanceListener);
+        factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+        factory.getContainerProperties().setIdleEventInterval(1000L);
         return factory;
     }
+
+    @Bean
+    public ProducerFactory<String, PodDetails> producerFactory() {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
+        JsonSerializer<PodDetails> serializer = new JsonSerializer<PodDetails>();
+        serializer.setAddTypeInfo(false);
+        return new DefaultKafkaProducerFactory<String, PodDetails>(props, new StringSerializer(), serializer);
+    }
+
+    @Bean
+    public KafkaTemplate<String, PodDetails> kafkaTemplate() {
+        return new KafkaTemplate<String, PodDetails>(producerFactory());
+    }
+
+    @Bean
+    public KafkaAdmin kafkaAdmin() {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        return new KafkaAdmin(props);
+    }
+
+    @Bean
+    public NewTopic deadLetterTopic() {
+        return TopicBuilder.name(Constants.KAFKA_DLT_TOPIC).partitions(1).replicas(RETRY_REPLICAS).build();
+    }
 }
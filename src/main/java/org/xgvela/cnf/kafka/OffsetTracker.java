@@ -0,0 +1,105 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * tracks offsets of a single partition which are handed to worker lanes but
+ * not yet processed; the committable position is the lowest offset still in
+ * flight, or one past the highest dispatched offset once everything finished,
+ * but never past an offset given up for redelivery
+ */
+class OffsetTracker {
+
+	private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+
+	// only touched from the consumer thread
+	private long next = -1;
+	private long committed = -1;
+
+	// lowest offset given up, the partition is revoked before it could be processed
+	private volatile long abandoned = Long.MAX_VALUE;
+
+	void begin(long offset) {
+		inFlight.add(offset);
+		next = Math.max(next, offset + 1);
+	}
+
+	/**
+	 * moves past an offset which needs no processing
+	 */
+	void skip(long offset) {
+		next = Math.max(next, offset + 1);
+	}
+
+	void complete(long... offsets) {
+		for (long offset : offsets) {
+			inFlight.remove(offset);
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * gives offsets up for the next owner of the partition, they no longer
+	 * hold up draining but are not committed
+	 */
+	void abandon(long... offsets) {
+		synchronized (this) {
+			for (long offset : offsets) {
+				inFlight.remove(offset);
+				abandoned = Math.min(abandoned, offset);
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * returns the offset to commit if it moved since the last commit, -1 otherwise
+	 */
+	long committable() {
+		Long lowest = inFlight.ceiling(Long.MIN_VALUE);
+		long watermark = Math.min(lowest != null ? lowest : next, abandoned);
+		return watermark > committed ? watermark : -1;
+	}
+
+	void committed(long offset) {
+		committed = Math.max(committed, offset);
+	}
+
+	int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * waits until every dispatched offset is processed, or the timeout elapses
+	 *
+	 * @return whether the partition is fully drained
+	 */
+	boolean awaitDrained(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (this) {
+			while (!inFlight.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				wait(remaining);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,180 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.Constants;
+import org.xgvela.cnf.zk.ZKManager;
+import org.xgvela.cnf.zk.ZKUtil;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks which NFs belong to the TMAAS partitions assigned to this replica.
+ * Events are expected to be keyed on NF, so that an NF is only ever mutated
+ * by the owner of its partition. The producer is not ours to trust: the first
+ * partition an NF is seen on claims it under /tmaas/owners/&lt;nfId&gt;, and
+ * events of the NF on any other partition are rejected to the dead letter
+ * topic and counted. The NF IDs seen per partition are kept in ZK under
+ * /tmaas/partitions/&lt;partition&gt;/&lt;nfId&gt; so that the next owner knows
+ * what to load when the partition moves.
+ */
+@Component
+public class PartitionOwnership {
+
+	private static final Logger LOG = LogManager.getLogger(PartitionOwnership.class);
+
+	@Autowired
+	List<PartitionScopedState> states;
+
+	@Autowired
+	MeterRegistry registry;
+
+	private final Map<Integer, Set<String>> owned = new ConcurrentHashMap<>();
+
+	// NFs of other partitions seen on an owned partition, rejected without asking ZK again
+	private final Map<Integer, Set<String>> misrouted = new ConcurrentHashMap<>();
+
+	private Counter misroutedEvents;
+
+	@PostConstruct
+	public void init() {
+		misroutedEvents = Counter.builder("tmaas.events.misrouted")
+				.description("Pod events rejected as their NF belongs to another partition").register(registry);
+	}
+
+	/**
+	 * records the NF of an event of an owned partition, called from the lanes;
+	 * ZK is only asked when the NF is first seen on the partition
+	 *
+	 * @throws MisroutedEventException if the NF belongs to another partition
+	 */
+	public void record(TopicPartition partition, String nfId) throws Exception {
+		if (!Constants.KAFKA_TOPIC.equals(partition.topic()))
+			return;
+
+		Set<String> nfIds = owned.computeIfAbsent(partition.partition(), p -> ConcurrentHashMap.newKeySet());
+		if (nfIds.contains(nfId))
+			return;
+
+		Set<String> rejected = misrouted.computeIfAbsent(partition.partition(), p -> ConcurrentHashMap.newKeySet());
+		int owner = rejected.contains(nfId) ? -1 : claim(partition.partition(), nfId);
+		if (owner != partition.partition()) {
+			rejected.add(nfId);
+			misroutedEvents.increment();
+			throw new MisroutedEventException("NF ID: [" + nfId + "] seen on partition " + partition
+					+ " but owned by partition " + (owner >= 0 ? owner : "other") + ", events are not keyed on NF");
+		}
+
+		ZKManager.createOrSet(ZKUtil.generatePathForPartition(partition.partition(), nfId), new byte[0]);
+		nfIds.add(nfId);
+	}
+
+	// partition the NF belongs to, claimed for the given partition unless another one has it
+	private static int claim(int partition, String nfId) throws Exception {
+		String path = ZKUtil.generatePathForOwner(nfId);
+		try {
+			ZKManager.create(path, String.valueOf(partition).getBytes(StandardCharsets.UTF_8));
+			return partition;
+		} catch (KeeperException.NodeExistsException e) {
+			return Integer.parseInt(new String(ZKManager.getData(path), StandardCharsets.UTF_8));
+		}
+	}
+
+	public Set<String> nfIds(int partition) {
+		return owned.getOrDefault(partition, Set.of());
+	}
+
+	public void assigned(Collection<TopicPartition> partitions) {
+		for (TopicPartition partition : partitions) {
+			if (!Constants.KAFKA_TOPIC.equals(partition.topic()))
+				continue;
+
+			Set<String> nfIds = ConcurrentHashMap.newKeySet();
+			try {
+				String path = ZKUtil.generatePathForPartition(partition.partition());
+				if (ZKManager.PathExist(path))
+					nfIds.addAll(ZKManager.getChildren(path));
+			} catch (Exception e) {
+				LOG.error("Unable to read NF IDs of partition " + partition + ": " + e.getMessage());
+			}
+
+			// NFs removed from the tree are not carried over, the others are claimed if recorded before claims
+			nfIds.removeIf(nfId -> {
+				if (ZKManager.PathExist(ZKUtil.generatePath(nfId))) {
+					claimed(partition, nfId);
+					return false;
+				}
+				ZKManager.delete(ZKUtil.generatePathForPartition(partition.partition(), nfId));
+				if (owner(nfId) == partition.partition())
+					ZKManager.delete(ZKUtil.generatePathForOwner(nfId));
+				return true;
+			});
+
+			owned.put(partition.partition(), nfIds);
+			LOG.info("Partition " + partition + " assigned, owning " + nfIds.size() + " NF(s)");
+			states.forEach(state -> state.load(partition.partition(), nfIds));
+		}
+	}
+
+	private void claimed(TopicPartition partition, String nfId) {
+		try {
+			int owner = claim(partition.partition(), nfId);
+			if (owner != partition.partition())
+				LOG.error("NF ID: [" + nfId + "] recorded for partition " + partition + " but owned by partition "
+						+ owner + ", events are not keyed on NF");
+		} catch (Exception e) {
+			LOG.error("Unable to claim NF ID: [" + nfId + "] for partition " + partition + ": " + e.getMessage());
+		}
+	}
+
+	// partition which claimed the NF, -1 if none or unknown
+	private static int owner(String nfId) {
+		try {
+			return Integer.parseInt(new String(ZKManager.getData(ZKUtil.generatePathForOwner(nfId)),
+					StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	public void revoked(Collection<TopicPartition> partitions) {
+		for (TopicPartition partition : partitions) {
+			if (!Constants.KAFKA_TOPIC.equals(partition.topic()))
+				continue;
+
+			misrouted.remove(partition.partition());
+			Set<String> nfIds = owned.remove(partition.partition());
+			if (nfIds == null)
+				continue;
+
+			LOG.info("Partition " + partition + " revoked, releasing " + nfIds.size() + " NF(s)");
+			states.forEach(state -> state.drop(partition.partition(), nfIds));
+		}
+	}
+}
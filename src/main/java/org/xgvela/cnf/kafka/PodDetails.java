@@ -14,10 +14,21 @@
 
 package org.xgvela.cnf.kafka;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.fabric8.kubernetes.client.Watcher.Action;
 
 public class PodDetails {
 
+	// v1 carries the TMaaS annotation values only, v2 may add a pod snapshot
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+
+	@JsonIgnore
+	private int version = VERSION_1;
+
+	@JsonIgnore
+	private PodSnapshot snapshot;
+
 	private Action action;
 	private String podName;
 	private String namespace;
@@ -30,7 +41,7 @@ public class PodDetails {
 	public String toString() {
 		return "PodDetails [action=" + action + ", podName=" + podName + ", namespace=" + namespace + ", nfName="
 				+ nfName + ", nfType=" + nfType + ", nfServiceName=" + nfServiceName + ", nfServiceType="
-				+ nfServiceType + "]";
+				+ nfServiceType + ", version=" + version + ", snapshot=" + snapshot + "]";
 	}
 
 	public PodDetails() {
@@ -48,6 +59,22 @@ public class PodDetails {
 		this.nfServiceType = nfServiceType;
 	}
 
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	public PodSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(PodSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
 	public Action getAction() {
 		return action;
 	}
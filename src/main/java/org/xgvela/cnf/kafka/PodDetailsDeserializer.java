@@ -0,0 +1,198 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.fabric8.kubernetes.client.Watcher.Action;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming deserializer for {@link PodDetails}. Payloads which are not a
+ * JSON object are not decoded at all and come out as null, to be dropped by
+ * {@link PodRecordFilter}. Low cardinality values like NF name, type and
+ * namespace are interned so that queued events share one copy. Both the v1
+ * message and the v2 message with its optional pod snapshot are understood.
+ */
+public class PodDetailsDeserializer implements Deserializer<PodDetails> {
+
+	private static final Logger LOG = LogManager.getLogger(PodDetailsDeserializer.class);
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private static final int MAX_INTERNED = 4096;
+	private static final Map<String, String> INTERNED = new ConcurrentHashMap<>();
+
+	@Override
+	public PodDetails deserialize(String topic, byte[] data) {
+		return decode(data);
+	}
+
+	private PodDetails decode(byte[] data) {
+		if (!isObject(data)) {
+			LOG.debug("Payload is not a JSON object, skipping");
+			return null;
+		}
+
+		PodDetails podDetails = new PodDetails();
+		try (JsonParser parser = FACTORY.createParser(data)) {
+			parser.nextToken();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				if (value == JsonToken.VALUE_NULL) {
+					continue;
+				}
+
+				switch (field) {
+				case "version":
+					podDetails.setVersion(parser.getValueAsInt(PodDetails.VERSION_1));
+					break;
+				case "pod":
+					if (value == JsonToken.START_OBJECT)
+						podDetails.setSnapshot(decodeSnapshot(parser));
+					else
+						parser.skipChildren();
+					break;
+				case "action":
+					podDetails.setAction(Action.valueOf(parser.getText()));
+					break;
+				case "podName":
+					podDetails.setPodName(parser.getText());
+					break;
+				case "namespace":
+					podDetails.setNamespace(intern(parser.getText()));
+					break;
+				case "nfName":
+					podDetails.setNfName(intern(parser.getText()));
+					break;
+				case "nfType":
+					podDetails.setNfType(intern(parser.getText()));
+					break;
+				case "nfServiceName":
+					podDetails.setNfServiceName(intern(parser.getText()));
+					break;
+				case "nfServiceType":
+					podDetails.setNfServiceType(intern(parser.getText()));
+					break;
+				default:
+					parser.skipChildren();
+					break;
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			LOG.error("Unable to decode PodDetails: " + e.getMessage());
+			return null;
+		}
+		return podDetails;
+	}
+
+	/**
+	 * decodes the v2 pod snapshot, parser positioned on its START_OBJECT
+	 */
+	private PodSnapshot decodeSnapshot(JsonParser parser) throws IOException {
+		PodSnapshot snapshot = new PodSnapshot();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if (value == JsonToken.VALUE_NULL) {
+				continue;
+			}
+
+			switch (field) {
+			case "resourceVersion":
+				snapshot.setResourceVersion(parser.getText());
+				break;
+			case "phase":
+				snapshot.setPhase(intern(parser.getText()));
+				break;
+			case "ready":
+				snapshot.setReady(parser.getValueAsBoolean());
+				break;
+			case "ownerKind":
+				snapshot.setOwnerKind(intern(parser.getText()));
+				break;
+			case "nodeName":
+				snapshot.setNodeName(intern(parser.getText()));
+				break;
+			case "podIP":
+				snapshot.setPodIP(parser.getText());
+				break;
+			case "labels":
+				snapshot.setLabels(decodeStringMap(parser));
+				break;
+			case "annotations":
+				snapshot.setAnnotations(decodeStringMap(parser));
+				break;
+			default:
+				parser.skipChildren();
+				break;
+			}
+		}
+		return snapshot;
+	}
+
+	private Map<String, String> decodeStringMap(JsonParser parser) throws IOException {
+		Map<String, String> map = new HashMap<>();
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return map;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String key = intern(parser.getCurrentName());
+			parser.nextToken();
+			if (parser.currentToken().isScalarValue())
+				map.put(key, parser.getValueAsString());
+			else
+				parser.skipChildren();
+		}
+		return map;
+	}
+
+	/**
+	 * cheap prefix scan, the first non blank byte has to open an object
+	 */
+	private static boolean isObject(byte[] data) {
+		if (data == null)
+			return false;
+		for (byte b : data) {
+			if (b == ' ' || b == '\t' || b == '\r' || b == '\n')
+				continue;
+			return b == '{';
+		}
+		return false;
+	}
+
+	private static String intern(String value) {
+		String interned = INTERNED.get(value);
+		if (interned != null)
+			return interned;
+
+		// names of NFs which are gone are never looked up again, start over
+		if (INTERNED.size() >= MAX_INTERNED)
+			INTERNED.clear();
+		interned = INTERNED.putIfAbsent(value, value);
+		return interned != null ? interned : value;
+	}
+}
@@ -0,0 +1,112 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.common.TopicPartition;
+import org.xgvela.cnf.util.PodContext;
+
+/**
+ * pod event queued on a worker lane, along with the kafka offsets it stands
+ * for; a coalesced event covers every record folded into it
+ */
+public class PodEvent {
+
+	private final PodDetails podDetails;
+	private final TopicPartition partition;
+	private final long[] offsets;
+
+	// failed attempts so far, set for events consumed from the retry topic
+	private int attempt;
+
+	// set when queued on a lane
+	private EventClass eventClass = EventClass.ROUTINE;
+	private long queuedAt;
+
+	// enrichment started when queued, null if left to the lane
+	private CompletableFuture<PodContext> context;
+
+	public PodEvent(PodDetails podDetails, TopicPartition partition, long... offsets) {
+		this.podDetails = podDetails;
+		this.partition = partition;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * returns an event with the details of this one, also covering the offsets of
+	 * the given one
+	 */
+	PodEvent absorb(PodEvent other) {
+		long[] merged = Arrays.copyOf(offsets, offsets.length + other.offsets.length);
+		System.arraycopy(other.offsets, 0, merged, offsets.length, other.offsets.length);
+		return new PodEvent(podDetails, partition, merged);
+	}
+
+	public PodDetails getPodDetails() {
+		return podDetails;
+	}
+
+	public TopicPartition getPartition() {
+		return partition;
+	}
+
+	public long[] getOffsets() {
+		return offsets;
+	}
+
+	public String getPodKey() {
+		return podDetails.getNamespace() + "/" + podDetails.getPodName();
+	}
+
+	public EventClass getEventClass() {
+		return eventClass;
+	}
+
+	public void setEventClass(EventClass eventClass) {
+		this.eventClass = eventClass;
+	}
+
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	public void setQueuedAt(long queuedAt) {
+		this.queuedAt = queuedAt;
+	}
+
+	public CompletableFuture<PodContext> getContext() {
+		return context;
+	}
+
+	public void setContext(CompletableFuture<PodContext> context) {
+		this.context = context;
+	}
+
+	public int getAttempt() {
+		return attempt;
+	}
+
+	public void setAttempt(int attempt) {
+		this.attempt = attempt;
+	}
+
+	@Override
+	public String toString() {
+		return "PodEvent [partition=" + partition + ", offsets=" + Arrays.toString(offsets) + ", attempt=" + attempt
+				+ ", class=" + eventClass + ", " + podDetails + "]";
+	}
+}
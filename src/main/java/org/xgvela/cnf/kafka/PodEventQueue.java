@@ -0,0 +1,98 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Queue of pod events which hands them out by {@link EventClass} while keeping
+ * the events of one pod in arrival order. Events are queued per pod, and a
+ * pod waits in the class of its most urgent pending event, so a termination
+ * queued behind a cosmetic update of the same pod pulls that update forward
+ * with it instead of overtaking it. Not thread safe, guarded by the
+ * {@link FairScheduler}.
+ */
+class PodEventQueue {
+
+	private final Map<String, Deque<PodEvent>> pending = new HashMap<>();
+	private final Map<String, EventClass> podClass = new HashMap<>();
+	private final Map<EventClass, LinkedHashSet<String>> ready = new HashMap<>();
+	private int size;
+
+	PodEventQueue() {
+		for (EventClass eventClass : EventClass.values()) {
+			ready.put(eventClass, new LinkedHashSet<>());
+		}
+	}
+
+	void add(PodEvent event) {
+		String key = event.getPodKey();
+		pending.computeIfAbsent(key, k -> new ArrayDeque<>()).add(event);
+		EventClass current = podClass.get(key);
+		if (current == null || event.getEventClass().compareTo(current) < 0) {
+			if (current != null)
+				ready.get(current).remove(key);
+			ready.get(event.getEventClass()).add(key);
+			podClass.put(key, event.getEventClass());
+		}
+		size++;
+	}
+
+	/**
+	 * the oldest event of the pod waiting longest in the most urgent class, null
+	 * if empty
+	 */
+	PodEvent poll() {
+		for (EventClass eventClass : EventClass.values()) {
+			Iterator<String> keys = ready.get(eventClass).iterator();
+			if (!keys.hasNext())
+				continue;
+
+			String key = keys.next();
+			keys.remove();
+			Deque<PodEvent> events = pending.get(key);
+			PodEvent event = events.poll();
+			if (events.isEmpty()) {
+				pending.remove(key);
+				podClass.remove(key);
+			} else {
+				// the pod goes to the back, in the class of what is left
+				EventClass remaining = EventClass.COSMETIC;
+				for (PodEvent next : events) {
+					if (next.getEventClass().compareTo(remaining) < 0)
+						remaining = next.getEventClass();
+				}
+				ready.get(remaining).add(key);
+				podClass.put(key, remaining);
+			}
+			size--;
+			return event;
+		}
+		return null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -0,0 +1,79 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.listener.adapter.RecordFilterStrategy;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.Constants;
+import org.xgvela.cnf.util.TopoManager;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Discards records before they reach the listener: records of another
+ * xgvelaId (per the xgvelaId header), records left undecoded by
+ * {@link PodDetailsDeserializer} (malformed payload) and records missing the
+ * fields needed to locate the pod in the tree.
+ */
+@Component
+public class PodRecordFilter implements RecordFilterStrategy<String, PodDetails> {
+
+	private static final Logger LOG = LogManager.getLogger(PodRecordFilter.class);
+
+	@Autowired
+	MeterRegistry registry;
+
+	private Counter filteredEvents;
+
+	@PostConstruct
+	public void init() {
+		filteredEvents = Counter.builder("tmaas.events.filtered")
+				.description("Records dropped as foreign or malformed before processing").register(registry);
+	}
+
+	@Override
+	public boolean filter(ConsumerRecord<String, PodDetails> record) {
+		PodDetails podDetails = record.value();
+		if (podDetails == null || isForeign(record.headers())
+				|| podDetails.getAction() == null || podDetails.getPodName() == null
+				|| podDetails.getNamespace() == null || podDetails.getNfName() == null) {
+
+			LOG.debug("Dropping record, Partition: " + record.partition() + ", Offset: " + record.offset());
+			filteredEvents.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * whether the record carries an xgvelaId header of another xgvela instance
+	 */
+	private static boolean isForeign(Headers headers) {
+		if (headers == null || TopoManager.xgvelaId == null)
+			return false;
+		Header header = headers.lastHeader(Constants.XGVELA_ID);
+		return header != null && header.value() != null
+				&& !TopoManager.xgvelaId.equals(new String(header.value(), StandardCharsets.UTF_8));
+	}
+}
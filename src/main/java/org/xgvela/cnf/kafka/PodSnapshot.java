@@ -0,0 +1,151 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.fabric8.kubernetes.api.model.ContainerStatus;
+import io.fabric8.kubernetes.api.model.ContainerStatusBuilder;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+
+/**
+ * pod status carried by a v2 {@link PodDetails} message, holding what the
+ * topology manager would otherwise read back from the API server
+ */
+public class PodSnapshot {
+
+	private String resourceVersion;
+	private String phase;
+	private Boolean ready;
+	private String ownerKind;
+	private String nodeName;
+	private String podIP;
+	private Map<String, String> labels = new HashMap<>();
+	private Map<String, String> annotations = new HashMap<>();
+
+	public PodSnapshot() {
+	}
+
+	/**
+	 * a snapshot can stand in for the pod once phase, owner kind and readiness
+	 * are known; without readiness the pod would have no container status and
+	 * be taken as ready, so the API server is asked instead
+	 */
+	public boolean isComplete() {
+		return phase != null && ownerKind != null && ready != null;
+	}
+
+	/**
+	 * builds a pod carrying the fields the topology manager reads
+	 */
+	public Pod toPod(String podName, String namespace) {
+		List<ContainerStatus> containerStatuses = new ArrayList<>();
+		if (ready != null)
+			containerStatuses.add(new ContainerStatusBuilder().withName(podName).withReady(ready).build());
+
+		return new PodBuilder()
+				.withNewMetadata()
+					.withName(podName)
+					.withNamespace(namespace)
+					.withResourceVersion(resourceVersion)
+					.withLabels(labels)
+					.withAnnotations(annotations)
+					.addNewOwnerReference().withKind(ownerKind).endOwnerReference()
+				.endMetadata()
+				.withNewSpec()
+					.withNodeName(nodeName)
+				.endSpec()
+				.withNewStatus()
+					.withPhase(phase)
+					.withPodIP(podIP)
+					.withContainerStatuses(containerStatuses)
+				.endStatus()
+				.build();
+	}
+
+	public String getResourceVersion() {
+		return resourceVersion;
+	}
+
+	public void setResourceVersion(String resourceVersion) {
+		this.resourceVersion = resourceVersion;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public void setPhase(String phase) {
+		this.phase = phase;
+	}
+
+	public Boolean getReady() {
+		return ready;
+	}
+
+	public void setReady(Boolean ready) {
+		this.ready = ready;
+	}
+
+	public String getOwnerKind() {
+		return ownerKind;
+	}
+
+	public void setOwnerKind(String ownerKind) {
+		this.ownerKind = ownerKind;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	public void setNodeName(String nodeName) {
+		this.nodeName = nodeName;
+	}
+
+	public String getPodIP() {
+		return podIP;
+	}
+
+	public void setPodIP(String podIP) {
+		this.podIP = podIP;
+	}
+
+	public Map<String, String> getLabels() {
+		return labels;
+	}
+
+	public void setLabels(Map<String, String> labels) {
+		this.labels = labels;
+	}
+
+	public Map<String, String> getAnnotations() {
+		return annotations;
+	}
+
+	public void setAnnotations(Map<String, String> annotations) {
+		this.annotations = annotations;
+	}
+
+	@Override
+	public String toString() {
+		return "PodSnapshot [resourceVersion=" + resourceVersion + ", phase=" + phase + ", ready=" + ready
+				+ ", ownerKind=" + ownerKind + ", nodeName=" + nodeName + ", podIP=" + podIP + "]";
+	}
+}
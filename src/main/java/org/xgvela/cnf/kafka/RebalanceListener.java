@@ -21,6 +21,7 @@ import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
 import org.springframework.stereotype.Component;
 
@@ -32,14 +33,21 @@ public class RebalanceListener implements ConsumerAwareRebalanceListener {
 	private static String currentPartitions = "";
 	public static CopyOnWriteArrayList<Integer> assignedPartitions = new CopyOnWriteArrayList<>();
 
+	@Autowired
+	EventDispatcher dispatcher;
+
+	@Autowired
+	PartitionOwnership ownership;
+
 	public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
 		LOG.debug("---onPartitionsRevokedBeforeCommit---");
-		consumer.commitAsync();
+		// let lanes finish the revoked partitions, commit only what was processed
+		dispatcher.revoke(consumer, partitions);
+		ownership.revoked(partitions);
 	}
 
 	public void onPartitionsRevokedAfterCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
 		LOG.debug("---onPartitionsRevokedAfterCommit---");
-		consumer.commitAsync();
 	}
 
 	public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
@@ -53,6 +61,6 @@ public class RebalanceListener implements ConsumerAwareRebalanceListener {
 		}
 
 		LOG.debug("---onPartitionsAssigned--- " + currentPartitions);
-		consumer.commitAsync();
+		ownership.assigned(partitions);
 	}
 }
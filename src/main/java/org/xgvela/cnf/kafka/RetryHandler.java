@@ -0,0 +1,140 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.Constants;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retry policy of pod events which failed to apply: transient failures are
+ * attempted again with exponential backoff, the event is published to the
+ * dead letter topic once out of attempts or if the failure is not transient.
+ * Events waiting for their next attempt are held by the {@link EventDispatcher}
+ * with the partition they came from, so only the owner of a partition ever
+ * applies its events.
+ * <p>
+ * A retried event reads the pod back from the API server, the snapshot or
+ * context it failed with may be outdated by then.
+ */
+@Component
+public class RetryHandler {
+
+    private static final Logger LOG = LogManager.getLogger(RetryHandler.class);
+
+    public static final String HEADER_ATTEMPT = "tmaas-attempt";
+    public static final String HEADER_ERROR = "tmaas-error";
+
+    private static final int MAX_ATTEMPTS = Integer.parseInt(System.getenv().getOrDefault("EVENT_RETRY_ATTEMPTS", "5"));
+    private static final long BACKOFF_INITIAL_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 30000;
+    private static final long SEND_TIMEOUT_MS = 10000;
+
+    @Autowired
+    KafkaTemplate<String, PodDetails> template;
+
+    @Autowired
+    MeterRegistry registry;
+
+    private Counter retriedEvents;
+    private Counter deadLetters;
+
+    @PostConstruct
+    public void init() {
+        retriedEvents = Counter.builder("tmaas.events.retried")
+                .description("Failed pod events scheduled for another attempt").register(registry);
+        deadLetters = Counter.builder("tmaas.events.dead")
+                .description("Pod events published to the dead letter topic after the last attempt").register(registry);
+    }
+
+    /**
+     * delay before the next attempt of a failed event
+     *
+     * @return -1 once out of attempts or for a failure which is not transient
+     */
+    public long nextAttempt(PodEvent event, Exception cause) {
+        int attempt = event.getAttempt() + 1;
+        if (attempt >= MAX_ATTEMPTS || !isTransient(cause))
+            return -1;
+        LOG.warn("Pod event failed, attempt " + attempt + " of " + MAX_ATTEMPTS + " scheduled: " + event);
+        retriedEvents.increment();
+        return backoff(attempt);
+    }
+
+    /**
+     * publishes the event to the dead letter topic; blocks until the broker
+     * acknowledged so that the offset of the failed event is not committed
+     * before the dead letter is stored
+     */
+    public void deadLetter(PodEvent event, Exception cause) {
+        int attempt = event.getAttempt() + 1;
+        ProducerRecord<String, PodDetails> record = new ProducerRecord<>(Constants.KAFKA_DLT_TOPIC,
+                event.getPodDetails().getNfName(), event.getPodDetails());
+        record.headers().add(HEADER_ATTEMPT, String.valueOf(attempt).getBytes(StandardCharsets.UTF_8));
+        record.headers().add(HEADER_ERROR, String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8));
+
+        try {
+            template.send(record).get(SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            LOG.error("Pod event failed " + attempt + " time(s)" + (attempt < MAX_ATTEMPTS ? ", not retryable" : "")
+                    + ", moved to " + Constants.KAFKA_DLT_TOPIC + ": " + event);
+            deadLetters.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted publishing dead letter, pod event dropped: " + event);
+        } catch (Exception e) {
+            LOG.error("Unable to publish dead letter, pod event dropped: " + event + ", " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * whether the failure may pass on a later attempt: the API server or ZK
+     * not reachable, a wait which timed out, or a state not visible yet. A pod
+     * event the tree cannot be built from fails the same way every time.
+     */
+    static boolean isTransient(Throwable cause) {
+        while ((cause instanceof ExecutionException || cause instanceof CompletionException)
+                && cause.getCause() != null)
+            cause = cause.getCause();
+        if (cause instanceof KubernetesClientException) {
+            int code = ((KubernetesClientException) cause).getCode();
+            return code == 0 || code == 408 || code == 409 || code == 429 || code >= 500;
+        }
+        if (cause instanceof JsonProcessingException)
+            return false;
+        return cause instanceof KeeperException || cause instanceof IOException
+                || cause instanceof TimeoutException || cause instanceof IllegalStateException;
+    }
+
+    static long backoff(int attempt) {
+        return Math.min(BACKOFF_MAX_MS, BACKOFF_INITIAL_MS << Math.min(attempt - 1, 20));
+    }
+}
@@ -15,14 +15,19 @@
 package org.xgvela.cnf.topo;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.xgvela.cnf.util.TopoManager;
-import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+// NFs are the znode children of /me, the paths once listed in network_functions
+// are no longer stored
+@JsonIgnoreProperties({"network_functions"})
 public class ManagedElement {
 
     @JsonProperty("id")
@@ -65,11 +70,9 @@ public class ManagedElement {
     @JsonProperty("terminated")
     private int terminated;
 
+    // shared by event lanes of different NFs
     @JsonIgnore
-    private Map<String, NetworkFunction> elem = new HashMap<>();
-
-    @JsonProperty("network_functions")
-    private Set<String> elemSet = new HashSet<>();
+    private Map<String, NetworkFunction> elem = new ConcurrentHashMap<>();
 
     @JsonProperty("rcp")
     private boolean rcp = false;
@@ -161,12 +164,18 @@ public class ManagedElement {
         return elem;
     }
 
+    /**
+     * NFs in memory are current, others are loaded from ZK once, e.g. after a
+     * restart or for a newly assigned partition
+     */
     public boolean has(String id) {
+        if (this.elem.containsKey(id)) {
+            return true;
+        }
         try {
-            byte[] data = ZKManager.getData(id);
+            byte[] data = ZKWriteBehind.getData(id);
             NetworkFunction networkFunction = TopoManager.mapper.readValue(data, NetworkFunction.class);
             this.elem.put(id, networkFunction);
-            this.elemSet.add(id);
             return true;
         } catch (Exception e) {
             return false;
@@ -178,19 +187,17 @@ public class ManagedElement {
     }
 
     public void setElem(Map<String, NetworkFunction> elem) {
-        this.elem = elem;
+        this.elem = new ConcurrentHashMap<>(elem);
     }
 
     public void addElem(String key, NetworkFunction value) {
-        this.elemSet.add(key);
         this.elem.put(key, value);
     }
 
     public void removeElem(String nfId) throws RuntimeException {
         String zkTopoKey = ZKUtil.generatePath(nfId);
-        ZKManager.delete(zkTopoKey);
+        ZKWriteBehind.delete(zkTopoKey);
         this.elem.remove(zkTopoKey);
-        this.elemSet.remove(zkTopoKey);
     }
 
     public int getInstanceCount() {
@@ -15,17 +15,25 @@
 package org.xgvela.cnf.topo;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.xgvela.cnf.util.TopoManager;
-import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
 
+// nf_service_instances duplicated the znode children and is no longer written
+@JsonIgnoreProperties({"nf_service_instances"})
 public class NFService {
     private static final Logger LOG = LogManager.getLogger(NFService.class);
+
+    // recount children on every update and report counters which drifted
+    static final boolean VERIFY_COUNTS = Boolean.parseBoolean(System.getenv().getOrDefault("TOPO_VERIFY_COUNTS", "false"));
+
+    private static final int NOT_READY = 0, READY = 1, ACTIVE_READY = 2, NULL = 3, OTHER = -1;
     @JsonProperty("id")
     private String id;
 
@@ -74,6 +82,21 @@ public class NFService {
     @JsonIgnore
     private Map<String, NFServiceInstance> elem = new HashMap<>();
 
+    // whether all instances are in elem, read from ZK once per service
+    @JsonIgnore
+    private boolean loaded = false;
+
+    // count bucket each instance is counted in, counters are kept up to date
+    // from the changes of single instances once all were counted
+    @JsonIgnore
+    private Map<String, Integer> counted = null;
+
+    // svcVersion each instance is counted with, and instances per svcVersion
+    @JsonIgnore
+    private Map<String, String> versionOf = null;
+    @JsonIgnore
+    private Map<String, Integer> versions = null;
+
     public String getUpgradeVersion(String upgradeVersionKey) {
         return this.getExtendedAttrs().get(upgradeVersionKey);
     }
@@ -86,14 +109,6 @@ public class NFService {
         this.getExtendedAttrs().remove(upgradeVersionKey);
     }
 
-    public Set<String> getElemSet() {
-        return elemSet;
-    }
-
-    public void setElemSet(Set<String> elemSet) {
-        this.elemSet = elemSet;
-    }
-
     public int getReadyCount() {
         return readyCount;
     }
@@ -126,9 +141,6 @@ public class NFService {
         this.activeReadyCount = activeReadyCount;
     }
 
-    @JsonProperty("nf_service_instances")
-    private Set<String> elemSet = new HashSet<>();
-
     @JsonProperty("k8sUid")
     private String k8sUid = null;
 
@@ -289,14 +301,16 @@ public class NFService {
     }
 
     public boolean has(String id) {
-        if (elemSet.contains(id) && elem.get(id) != null) {
+        if (elem.containsKey(id)) {
             return true;
         }
+        if (loaded) {
+            return false;
+        }
         try {
-            byte[] data = ZKManager.getData(id);
+            byte[] data = ZKWriteBehind.getData(id);
             NFServiceInstance nwServiceInstance = TopoManager.mapper.readValue(data, NFServiceInstance.class);
             this.elem.put(id, nwServiceInstance);
-            this.elemSet.add(id);
             return true;
         } catch (Exception e) {
             return false;
@@ -316,14 +330,14 @@ public class NFService {
     }
 
     public void addElem(String key, NFServiceInstance value) {
-        this.elemSet.add(key);
         this.elem.put(key, value);
+        recount(key);
     }
 
     public void removeElem(String key) throws RuntimeException {
-        ZKManager.delete(key);
+        ZKWriteBehind.delete(key);
         this.elem.remove(key);
-        this.elemSet.remove(key);
+        recount(key);
     }
 
     public int getMinReadyCount() {
@@ -342,52 +356,152 @@ public class NFService {
         this.parent = parent;
     }
 
+    /**
+     * recounts all instances and updates the state
+     */
     public void update(String nfParent) throws Exception {
         // Need to bring in all the states of children of this service to calcluate the state.
         getInstances(nfParent);
+        recount();
+        this.state = getNFServiceState();
+    }
 
-        int readyCount = 0, notReadyCount = 0, nullCount = 0, activeReadyCount = 0;
-        Iterator<NFServiceInstance> iterator = this.getElem().values().iterator();
-
-        while (iterator.hasNext()) {
-            NFServiceInstance nfServiceInstance = iterator.next();
-            LOG.debug("NF SERVCIE UPDATE  [ " + this.getName() + " ] : ServiceInstance : [ " + nfServiceInstance.getName() + " ]" + " : state : " + nfServiceInstance.getState().toString());
-            switch (nfServiceInstance.getState()) {
-                case NOT_READY:
-                    notReadyCount++;
-                    break;
-                case READY:
-                    readyCount++;
-                    if (nfServiceInstance.getHaRole().equals("active"))
-                        activeReadyCount++;
-                    break;
-                case NULL:
-                    nullCount++;
-                    break;
-                default:
-                    break;
-            }
+    /**
+     * updates the state after the instance under key was added, changed or
+     * removed; only that instance is counted again
+     */
+    public void update(String nfParent, String key) throws Exception {
+        getInstances(nfParent);
+        if (counted == null) {
+            recount();
+        } else {
+            recount(key);
+            if (VERIFY_COUNTS)
+                verify();
         }
-        this.readyCount = readyCount;
-        this.notReadyCount = notReadyCount;
-        this.nullCount = nullCount;
-        this.activeReadyCount = activeReadyCount;
-
         this.state = getNFServiceState();
     }
 
+    private void recount() {
+        this.readyCount = 0;
+        this.notReadyCount = 0;
+        this.nullCount = 0;
+        this.activeReadyCount = 0;
+        this.counted = new HashMap<>();
+        this.versionOf = new HashMap<>();
+        this.versions = new HashMap<>();
+        for (String key : this.elem.keySet())
+            recount(key);
+    }
+
+    private void recount(String key) {
+        if (counted == null)
+            return;
+        Integer old = counted.remove(key);
+        if (old != null)
+            count(old, -1);
+        String oldVersion = versionOf.remove(key);
+        if (oldVersion != null)
+            versions.computeIfPresent(oldVersion, (version, count) -> count > 1 ? count - 1 : null);
+
+        NFServiceInstance nfServiceInstance = this.elem.get(key);
+        if (nfServiceInstance != null) {
+            int bucket = bucket(nfServiceInstance);
+            count(bucket, 1);
+            counted.put(key, bucket);
+            String version = nfServiceInstance.getSvcVersion(TopoManager.NFSI_VERSION_KEY);
+            versionOf.put(key, version);
+            versions.merge(version, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * instances running the svcVersion, compared ignoring case
+     */
+    public int countOfVersion(String nfParent, String svcVersion) throws Exception {
+        getInstances(nfParent);
+        if (counted == null)
+            recount();
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(svcVersion))
+                count += entry.getValue();
+        }
+        return count;
+    }
+
+    /**
+     * instances of the NF Service, as counted
+     */
+    public int countOfInstances(String nfParent) throws Exception {
+        getInstances(nfParent);
+        if (counted == null)
+            recount();
+        return counted.size();
+    }
+
+    private void verify() {
+        int readyCount = this.readyCount, notReadyCount = this.notReadyCount, nullCount = this.nullCount,
+                activeReadyCount = this.activeReadyCount;
+        Map<String, Integer> versions = this.versions;
+        recount();
+        if (readyCount != this.readyCount || notReadyCount != this.notReadyCount || nullCount != this.nullCount
+                || activeReadyCount != this.activeReadyCount)
+            LOG.warn("NF SERVICE [" + this.name + "] counters drifted, ready/notReady/null/activeReady were "
+                    + readyCount + "/" + notReadyCount + "/" + nullCount + "/" + activeReadyCount + ", recounted "
+                    + this.readyCount + "/" + this.notReadyCount + "/" + this.nullCount + "/" + this.activeReadyCount);
+        if (!versions.equals(this.versions))
+            LOG.warn("NF SERVICE [" + this.name + "] version counts drifted, were " + versions + ", recounted "
+                    + this.versions);
+    }
+
+    private static int bucket(NFServiceInstance nfServiceInstance) {
+        switch (nfServiceInstance.getState()) {
+            case NOT_READY:
+                return NOT_READY;
+            case READY:
+                return "active".equals(nfServiceInstance.getHaRole()) ? ACTIVE_READY : READY;
+            case NULL:
+                return NULL;
+            default:
+                return OTHER;
+        }
+    }
+
+    private void count(int bucket, int delta) {
+        switch (bucket) {
+            case NOT_READY:
+                this.notReadyCount += delta;
+                break;
+            case ACTIVE_READY:
+                this.activeReadyCount += delta;
+                this.readyCount += delta;
+                break;
+            case READY:
+                this.readyCount += delta;
+                break;
+            case NULL:
+                this.nullCount += delta;
+                break;
+            default:
+                break;
+        }
+    }
+
     private List<NFServiceInstance> getInstances(String nfParent) throws Exception {
-        List<NFServiceInstance> listOfInstances = new ArrayList<>();
-        List<String> svcInstances = ZKManager.getChildren(ZKUtil.generatePath(nfParent, id));
-        for (String svcIns : svcInstances) {
-            String path = ZKUtil.generatePath(nfParent, id, svcIns);
-            byte[] svcInstData = ZKManager.getData(path);
-            NFServiceInstance networkServiceInst = TopoManager.mapper.readValue(svcInstData, NFServiceInstance.class);
-            listOfInstances.add(networkServiceInst);
-            this.elem.put(path, networkServiceInst);
-            this.elemSet.add(path);
+        if (!loaded) {
+            List<String> svcInstances = ZKWriteBehind.getChildren(ZKUtil.generatePath(nfParent, id));
+            for (String svcIns : svcInstances) {
+                String path = ZKUtil.generatePath(nfParent, id, svcIns);
+                if (this.elem.containsKey(path))
+                    continue;
+                byte[] svcInstData = ZKWriteBehind.getData(path);
+                NFServiceInstance networkServiceInst = TopoManager.mapper.readValue(svcInstData, NFServiceInstance.class);
+                this.elem.put(path, networkServiceInst);
+            }
+            loaded = true;
         }
-        return listOfInstances;
+        return new ArrayList<>(this.elem.values());
     }
 
     private State getNFServiceState() {
@@ -14,6 +14,8 @@
 
 package org.xgvela.cnf.topo;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.xgvela.cnf.kafka.PodDetails;
 
@@ -21,6 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 public class NFServiceInstance {
 
@@ -57,6 +60,15 @@ public class NFServiceInstance {
     @JsonProperty("extendedAttrs")
     private Map<String, String> extendedAttrs = new HashMap<>();
 
+    // resourceVersion of the pod last applied, events not newer are dropped
+    @JsonProperty("resourceVersion")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String resourceVersion;
+
+    // pod the instance was last fully built from, unknown once read from ZK
+    @JsonIgnore
+    private PodInputs inputs;
+
     public NFServiceInstance() {
     }
 
@@ -70,6 +82,31 @@ public class NFServiceInstance {
         this.extendedAttrs.put(serviceVersionKey, serviceVersionValue);
     }
 
+    /**
+     * whether the instance already holds these values
+     */
+    public boolean matches(State state, String haRole, String msUid, List<PodNetworksStatus> nws,
+                           Map<String, String> extendedAttrs) {
+        return this.state == state && Objects.equals(this.haRole, haRole) && Objects.equals(this.msUid, msUid)
+                && Objects.equals(this.nws, nws) && Objects.equals(this.extendedAttrs, extendedAttrs);
+    }
+
+    public String getResourceVersion() {
+        return resourceVersion;
+    }
+
+    public void setResourceVersion(String resourceVersion) {
+        this.resourceVersion = resourceVersion;
+    }
+
+    public PodInputs getInputs() {
+        return inputs;
+    }
+
+    public void setInputs(PodInputs inputs) {
+        this.inputs = inputs;
+    }
+
     public String getDnPrefix() {
         return dnPrefix;
     }
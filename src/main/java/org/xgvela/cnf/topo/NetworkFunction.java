@@ -15,16 +15,19 @@
 package org.xgvela.cnf.topo;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.xgvela.cnf.k8s.K8sUtil;
 import org.xgvela.cnf.util.TopoManager;
-import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
 
+// services are read from the znode children, nf_services of older data is skipped
+@JsonIgnoreProperties({"nf_services"})
 public class NetworkFunction {
 
     private static final Logger LOG = LogManager.getLogger(NetworkFunction.class);
@@ -62,8 +65,18 @@ public class NetworkFunction {
     @JsonIgnore
     private Map<String, NFService> elem = new HashMap<>();
 
-    @JsonProperty("nf_services")
-    private Set<String> elemSet = new HashSet<>();
+    // whether all services are in elem, read from ZK once per NF
+    @JsonIgnore
+    private boolean loaded = false;
+
+    // state each service is counted in, counters are kept up to date from the
+    // changes of single services once all were counted
+    @JsonIgnore
+    private Map<String, State> counted = null;
+
+    // services with an upgrade in progress, counted along with the states
+    @JsonIgnore
+    private Set<String> upgrading = null;
 
     @JsonProperty("minActiveCount")
     private int minActiveCount = 0;
@@ -167,11 +180,16 @@ public class NetworkFunction {
     }
 
     public boolean has(String id) {
+        if (this.elem.containsKey(id)) {
+            return true;
+        }
+        if (this.loaded) {
+            return false;
+        }
         try {
-            byte[] data = ZKManager.getData(id);
+            byte[] data = ZKWriteBehind.getData(id);
             NFService networkService = TopoManager.mapper.readValue(data, NFService.class);
             this.elem.put(id, networkService);
-            this.elemSet.add(id);
             return true;
 
         } catch (Exception e) {
@@ -192,15 +210,15 @@ public class NetworkFunction {
     }
 
     public void addElem(String key, NFService value) {
-        this.elemSet.add(key);
         this.elem.put(key, value);
+        recount(key);
     }
 
     public void removeElem(String nfId, String nfsId) throws RuntimeException {
         String zkTopoKey = ZKUtil.generatePath(nfId, nfsId);
-        ZKManager.delete(zkTopoKey);
+        ZKWriteBehind.delete(zkTopoKey);
         this.elem.remove(zkTopoKey);
-        this.elemSet.remove(zkTopoKey);
+        recount(zkTopoKey);
     }
 
     public String getNamespace() {
@@ -259,50 +277,119 @@ public class NetworkFunction {
     }
 
 
+    /**
+     * recounts all services and updates the state
+     */
     public void update() throws Exception {
         getInstances();
+        recount();
+        this.updateState();
+    }
 
-        int instantiatedConfActive = 0, instantiatedNotConf = 0, instantiatedConfInactive = 0, nullCount = 0;
-        Iterator<NFService> iterator = this.getElem().values().iterator();
-
-        while (iterator.hasNext()) {
-            NFService sd = iterator.next();
-            LOG.debug("NFUPDATE [ " + this.getName() + " ]  service name [ " + sd.getName() + " ]" + " state : " + sd.getState().toString());
-            switch (sd.getState()) {
-                case INSTANTIATED_CONFIGURED_ACTIVE:
-                    instantiatedConfActive++;
-                    break;
-                case INSTANTIATED_NOT_CONFIGURED:
-                    instantiatedNotConf++;
-                    break;
-                case INSTANTIATED_CONFIGURED_INACTIVE:
-                    instantiatedConfInactive++;
-                    break;
-                case NULL:
-                    nullCount++;
-                default:
-                    break;
-            }
+    /**
+     * updates the state after the service under key was added, changed or
+     * removed; only that service is counted again
+     */
+    public void update(String key) throws Exception {
+        getInstances();
+        if (counted == null) {
+            recount();
+        } else {
+            recount(key);
+            if (NFService.VERIFY_COUNTS)
+                verify();
         }
-        this.instantiatedConfActive = instantiatedConfActive;
-        this.instantiatedNotConf = instantiatedNotConf;
-        this.instantiatedConfInactive = instantiatedConfInactive;
-        this.nullCount = nullCount;
         this.updateState();
     }
 
+    private void recount() {
+        this.instantiatedConfActive = 0;
+        this.instantiatedNotConf = 0;
+        this.instantiatedConfInactive = 0;
+        this.nullCount = 0;
+        this.counted = new HashMap<>();
+        this.upgrading = new HashSet<>();
+        for (String key : this.elem.keySet())
+            recount(key);
+    }
+
+    private void recount(String key) {
+        if (counted == null)
+            return;
+        State old = counted.remove(key);
+        if (old != null)
+            count(old, -1);
+
+        NFService nfService = this.elem.get(key);
+        if (nfService != null) {
+            LOG.debug("NFUPDATE [ " + this.getName() + " ]  service name [ " + nfService.getName() + " ]" + " state : " + nfService.getState().toString());
+            count(nfService.getState(), 1);
+            counted.put(key, nfService.getState());
+        }
+        if (nfService != null && nfService.getUpgradeVersion(TopoManager.UPGRADEVERSION_KEY) != null)
+            upgrading.add(key);
+        else
+            upgrading.remove(key);
+    }
+
+    /**
+     * services with an upgrade in progress, the one under key is counted again
+     * first as its upgrade may just have completed
+     */
+    public int upgrading(String key) throws Exception {
+        getInstances();
+        if (counted == null)
+            recount();
+        else
+            recount(key);
+        return upgrading.size();
+    }
+
+    private void verify() {
+        int instantiatedConfActive = this.instantiatedConfActive, instantiatedNotConf = this.instantiatedNotConf,
+                instantiatedConfInactive = this.instantiatedConfInactive, nullCount = this.nullCount;
+        recount();
+        if (instantiatedConfActive != this.instantiatedConfActive || instantiatedNotConf != this.instantiatedNotConf
+                || instantiatedConfInactive != this.instantiatedConfInactive || nullCount != this.nullCount)
+            LOG.warn("NETWORK FUNCTION [" + this.name + "] counters drifted, confActive/notConf/confInactive/null were "
+                    + instantiatedConfActive + "/" + instantiatedNotConf + "/" + instantiatedConfInactive + "/" + nullCount
+                    + ", recounted " + this.instantiatedConfActive + "/" + this.instantiatedNotConf + "/"
+                    + this.instantiatedConfInactive + "/" + this.nullCount);
+    }
+
+    private void count(State state, int delta) {
+        switch (state) {
+            case INSTANTIATED_CONFIGURED_ACTIVE:
+                this.instantiatedConfActive += delta;
+                break;
+            case INSTANTIATED_NOT_CONFIGURED:
+                this.instantiatedNotConf += delta;
+                break;
+            case INSTANTIATED_CONFIGURED_INACTIVE:
+                this.instantiatedConfInactive += delta;
+                break;
+            case NULL:
+                this.nullCount += delta;
+                break;
+            default:
+                break;
+        }
+    }
+
     private  List<NFService> getInstances() throws Exception {
-        List<NFService> nfServiceList = new ArrayList<>();
-        List<String> svcs = ZKManager.getChildren(ZKUtil.generatePath(id));
-        for (String svc : svcs) {
-            String path = ZKUtil.generatePath(id, svc);
-            byte[] svcData = ZKManager.getData(path);
-            NFService networkService = TopoManager.mapper.readValue(svcData, NFService.class);
-            nfServiceList.add(networkService);
-            this.elem.put(path, networkService);
-            this.elemSet.add(path);
+        if (!this.loaded) {
+            List<String> svcs = ZKWriteBehind.getChildren(ZKUtil.generatePath(id));
+            for (String svc : svcs) {
+                String path = ZKUtil.generatePath(id, svc);
+                if (this.elem.containsKey(path))
+                    continue;
+                byte[] svcData = ZKWriteBehind.getData(path);
+                NFService networkService = TopoManager.mapper.readValue(svcData, NFService.class);
+                this.elem.put(path, networkService);
+            }
+            this.loaded = true;
         }
-        return nfServiceList;
+        return new ArrayList<>(this.elem.values());
     }
 
     private void updateState() throws Exception {
@@ -331,8 +418,8 @@ public class NetworkFunction {
             // if there is state change, double-check instance count, atmost once,
             // do not trigger for RCP
             if (!TopoManager.me.isRcp() && i < 1 && !this.nfType.equals("xgvela") && stateToUpdate != this.state) {
-                K8sUtil k8s = new K8sUtil();
-                this.minActiveCount = k8s.getNfInstanceCount(this.namespace, this.name, 0, true);
+                // counted by the WorkloadIndex once the informers have synced
+                this.minActiveCount = K8sUtil.shared().getNfInstanceCount(this.namespace, this.name, 0, true);
                 LOG.debug("NETWORK FUNCTION UPDATE MINACTIVE COUNT " + this.minActiveCount);
             } else {
                 LOG.debug("NETWORK FUNCTION UPDATE MINACTIVE COUNT IN BREAK " + this.minActiveCount);
@@ -0,0 +1,66 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.topo;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import org.xgvela.cnf.Constants;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * parts of a pod an NF Service Instance is built from, apart from its state
+ * and the HA role and MS Uid labels, along with the labels of its node. Equal
+ * inputs mean a pod update can only have changed the role.
+ */
+public class PodInputs {
+
+    private final Map<String, String> labels;
+    private final Map<String, String> annotations;
+    private final String nodeName;
+    private final String podIP;
+
+    // shared by the NodeLabelIndex, unchanged labels keep their map
+    private final Map<String, String> nodeLabels;
+
+    public PodInputs(Pod pod, Map<String, String> nodeLabels) {
+        this.labels = pod.getMetadata().getLabels() == null ? new HashMap<>()
+                : new HashMap<>(pod.getMetadata().getLabels());
+        this.labels.remove(Constants.LABEL_HA_ROLE);
+        this.labels.remove(Constants.LABEL_MS_UID);
+        this.annotations = pod.getMetadata().getAnnotations();
+        this.nodeName = pod.getSpec().getNodeName();
+        this.podIP = pod.getStatus() == null ? null : pod.getStatus().getPodIP();
+        this.nodeLabels = nodeLabels;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        PodInputs that = (PodInputs) o;
+        return labels.equals(that.labels) && Objects.equals(annotations, that.annotations)
+                && Objects.equals(nodeName, that.nodeName) && Objects.equals(podIP, that.podIP)
+                && (nodeLabels == that.nodeLabels || Objects.equals(nodeLabels, that.nodeLabels));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(labels, annotations, nodeName, podIP, nodeLabels);
+    }
+}
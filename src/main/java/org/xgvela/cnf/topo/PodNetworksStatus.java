@@ -16,6 +16,7 @@ package org.xgvela.cnf.topo;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.xgvela.cnf.Constants;
@@ -76,4 +77,20 @@ public class PodNetworksStatus {
 	public void set_default(boolean _default) {
 		this._default = _default;
 	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+		PodNetworksStatus that = (PodNetworksStatus) o;
+		return _default == that._default && Objects.equals(name, that.name) && Objects.equals(intf, that.intf)
+				&& Objects.equals(vips, that.vips) && Objects.equals(ips, that.ips);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(name, intf, _default, vips, ips);
+	}
 }
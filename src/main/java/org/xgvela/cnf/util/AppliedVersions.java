@@ -0,0 +1,243 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Last applied resourceVersion of each pod, by NF. The version of a pod in the
+ * tree is persisted with its NF Service Instance and read back from there when
+ * not known in memory, i.e. after a restart or once its partition moved. A
+ * deleted pod leaves a tombstone with the version it was deleted at, kept in
+ * the {@link Store} for the TTL, so that replays of its earlier events do not
+ * bring it back.
+ */
+public class AppliedVersions {
+
+    private static final Logger LOG = LogManager.getLogger(AppliedVersions.class);
+
+    /**
+     * persistence of the tombstones, keyed by NF ID and namespace/pod
+     */
+    public interface Store {
+
+        Map<String, Tombstone> tombstones(String nfId) throws Exception;
+
+        void tombstone(String nfId, String podKey, Tombstone tombstone) throws Exception;
+
+        void remove(String nfId, String podKey) throws Exception;
+    }
+
+    public static class Tombstone {
+
+        private final long version;
+        private final long deletedAt;
+
+        public Tombstone(long version, long deletedAt) {
+            this.version = version;
+            this.deletedAt = deletedAt;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getDeletedAt() {
+            return deletedAt;
+        }
+
+        /**
+         * version,deletedAt as stored in ZK
+         */
+        @Override
+        public String toString() {
+            return version + "," + deletedAt;
+        }
+
+        public static Tombstone parse(String value) {
+            String[] fields = value.split(",");
+            return new Tombstone(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+        }
+    }
+
+    // tombstones keep their deletion time, a live pod has none
+    private static class Applied {
+        private final long version;
+        private final long deletedAt;
+
+        Applied(long version, long deletedAt) {
+            this.version = version;
+            this.deletedAt = deletedAt;
+        }
+    }
+
+    private static final long LIVE = -1;
+
+    private final Store store;
+    private final long tombstoneTtlMs;
+    private final LongSupplier clock;
+
+    private final Map<String, Map<String, Applied>> applied = new ConcurrentHashMap<>();
+    private final Map<String, Long> sweptAt = new ConcurrentHashMap<>();
+
+    public AppliedVersions(Store store, long tombstoneTtlMs, LongSupplier clock) {
+        this.store = store;
+        this.tombstoneTtlMs = tombstoneTtlMs;
+        this.clock = clock;
+    }
+
+    /**
+     * whether the version is not newer than the one last applied for the pod,
+     * for deletions only an older version is
+     *
+     * @param persisted version stored with the pod's NF Service Instance, -1 if
+     *                  there is none; only asked when not known in memory
+     */
+    public boolean isNotNewer(String nfId, String podKey, long version, boolean deletion, LongSupplier persisted) {
+        if (version < 0)
+            return false;
+        Map<String, Applied> versions = versions(nfId);
+        Applied last = versions.get(podKey);
+        if (last != null && isExpired(last)) {
+            forget(nfId, podKey, last);
+            last = null;
+        }
+        if (last == null) {
+            long stored = persisted.getAsLong();
+            if (stored < 0)
+                return false;
+            last = new Applied(stored, LIVE);
+            versions.putIfAbsent(podKey, last);
+        }
+        return version < last.version || (version == last.version && !deletion);
+    }
+
+    /**
+     * records the version the pod was applied at, a tombstone is lifted
+     */
+    public void applied(String nfId, String podKey, long version) {
+        if (version < 0)
+            return;
+        Map<String, Applied> versions = versions(nfId);
+        Applied last = versions.get(podKey);
+        if (last != null && last.deletedAt == LIVE && last.version >= version)
+            return;
+        versions.put(podKey, new Applied(version, LIVE));
+        if (last != null && last.deletedAt != LIVE)
+            removeTombstone(nfId, podKey);
+    }
+
+    /**
+     * leaves a tombstone for the deleted pod, at the version of its deletion or
+     * else the last one applied
+     */
+    public void deleted(String nfId, String podKey, long version) {
+        Map<String, Applied> versions = versions(nfId);
+        Applied last = versions.get(podKey);
+        long at = Math.max(version, last != null ? last.version : -1);
+        if (at < 0) {
+            versions.remove(podKey);
+            return;
+        }
+        long now = clock.getAsLong();
+        versions.put(podKey, new Applied(at, now));
+        try {
+            store.tombstone(nfId, podKey, new Tombstone(at, now));
+        } catch (Exception e) {
+            LOG.error("Unable to store tombstone of Pod: [" + podKey + "]: " + e.getMessage());
+        }
+        sweep(nfId, now);
+    }
+
+    /**
+     * takes over the versions of the pods of a newly owned NF, as persisted
+     * with their NF Service Instances
+     */
+    public void load(String nfId, Map<String, Long> instanceVersions) {
+        Map<String, Applied> versions = versions(nfId);
+        instanceVersions.forEach((podKey, version) -> versions.merge(podKey, new Applied(version, LIVE),
+                (old, now) -> old.version >= now.version ? old : now));
+    }
+
+    /**
+     * forgets the NF in memory, what is persisted stays for its next owner
+     */
+    public void drop(String nfId) {
+        applied.remove(nfId);
+        sweptAt.remove(nfId);
+    }
+
+    // the tombstones of an NF are read back on first use, expired ones are removed
+    private Map<String, Applied> versions(String nfId) {
+        Map<String, Applied> versions = applied.get(nfId);
+        if (versions != null)
+            return versions;
+        return applied.computeIfAbsent(nfId, id -> {
+            Map<String, Applied> loaded = new ConcurrentHashMap<>();
+            try {
+                store.tombstones(id).forEach((podKey, tombstone) -> {
+                    Applied last = new Applied(tombstone.getVersion(), tombstone.getDeletedAt());
+                    if (isExpired(last))
+                        removeTombstone(id, podKey);
+                    else
+                        loaded.put(podKey, last);
+                });
+            } catch (Exception e) {
+                LOG.error("Unable to read tombstones of NF ID: [" + id + "]: " + e.getMessage());
+            }
+            sweptAt.put(id, clock.getAsLong());
+            return loaded;
+        });
+    }
+
+    private boolean isExpired(Applied last) {
+        return last.deletedAt != LIVE && clock.getAsLong() - last.deletedAt > tombstoneTtlMs;
+    }
+
+    private void forget(String nfId, String podKey, Applied last) {
+        if (versions(nfId).remove(podKey, last))
+            removeTombstone(nfId, podKey);
+    }
+
+    private void removeTombstone(String nfId, String podKey) {
+        try {
+            store.remove(nfId, podKey);
+        } catch (Exception e) {
+            LOG.error("Unable to remove tombstone of Pod: [" + podKey + "]: " + e.getMessage());
+        }
+    }
+
+    // expired tombstones of an NF are removed at most once a quarter of the TTL
+    private void sweep(String nfId, long now) {
+        Long last = sweptAt.putIfAbsent(nfId, now);
+        if (last != null && now - last < tombstoneTtlMs / 4)
+            return;
+        sweptAt.put(nfId, now);
+        Iterator<Map.Entry<String, Applied>> iterator = versions(nfId).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Applied> entry = iterator.next();
+            if (isExpired(entry.getValue())) {
+                iterator.remove();
+                removeTombstone(nfId, entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.util;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import org.xgvela.cnf.topo.PodNetworksStatus;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * what a pod event is applied from, gathered ahead of the tree change by
+ * {@link TopoManager#prepare}: the identity, the pod and, for an added pod,
+ * the K8s lookups it is built from
+ */
+public class PodContext {
+
+    private final TopoIdentity id;
+
+    // whether the pod was fetched, it may still be null if not found
+    private final boolean fetched;
+    private final Pod pod;
+
+    private final boolean resolved;
+    private final Object owner;
+    private final Map<String, String> nodeLabels;
+    private final List<PodNetworksStatus> nws;
+    private final String nfSwVersion;
+
+    PodContext(TopoIdentity id) {
+        this(id, false, null, false, null, null, null, null);
+    }
+
+    PodContext(TopoIdentity id, Pod pod) {
+        this(id, true, pod, false, null, null, null, null);
+    }
+
+    PodContext(TopoIdentity id, Pod pod, Object owner, Map<String, String> nodeLabels, List<PodNetworksStatus> nws,
+               String nfSwVersion) {
+        this(id, true, pod, true, owner, nodeLabels, nws, nfSwVersion);
+    }
+
+    private PodContext(TopoIdentity id, boolean fetched, Pod pod, boolean resolved, Object owner,
+                       Map<String, String> nodeLabels, List<PodNetworksStatus> nws, String nfSwVersion) {
+        this.id = id;
+        this.fetched = fetched;
+        this.pod = pod;
+        this.resolved = resolved;
+        this.owner = owner;
+        this.nodeLabels = nodeLabels;
+        this.nws = nws;
+        this.nfSwVersion = nfSwVersion;
+    }
+
+    public TopoIdentity getId() {
+        return id;
+    }
+
+    public boolean isFetched() {
+        return fetched;
+    }
+
+    public Pod getPod() {
+        return pod;
+    }
+
+    /**
+     * whether owner, node labels and networks of the pod were looked up
+     */
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    /**
+     * Deployment, StatefulSet, DaemonSet or RobinRole of the pod, null if not found
+     */
+    public Object getOwner() {
+        return owner;
+    }
+
+    public Map<String, String> getNodeLabels() {
+        return nodeLabels;
+    }
+
+    public List<PodNetworksStatus> getNws() {
+        return nws;
+    }
+
+    /**
+     * software version of the namespace, null unless looked up for a new NF
+     */
+    public String getNfSwVersion() {
+        return nfSwVersion;
+    }
+}
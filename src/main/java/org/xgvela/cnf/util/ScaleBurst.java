@@ -0,0 +1,218 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.xgvela.cnf.kafka.PodDetails;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds the NF and NFService state changes of a burst of pods added to one
+ * NFService, e.g. a Deployment scaled from 0 to 500 replicas, into a single
+ * change each, from the state before the burst to the state after it. An
+ * NFService bursts once TOPO_BURST_THRESHOLD pods are added within
+ * TOPO_BURST_WINDOW_MS, the burst ends when no pod was added for a window.
+ * The folded changes of an NF are sent when its bursts have ended, or before
+ * any other event of the NF is applied. Instance notifications are not held.
+ */
+@Component
+public class ScaleBurst {
+
+    private static final Logger LOG = LogManager.getLogger(ScaleBurst.class);
+
+    private static final int THRESHOLD = Integer.parseInt(System.getenv().getOrDefault("TOPO_BURST_THRESHOLD", "20"));
+    private static final long WINDOW_MS = Long.parseLong(System.getenv().getOrDefault("TOPO_BURST_WINDOW_MS", "1000"));
+
+    @Autowired
+    Notifier notifier;
+
+    @Autowired
+    MeterRegistry registry;
+
+    private static class Burst {
+        private final String nfId;
+        private long windowStart;
+        private long lastAdd;
+        private int adds;
+        private boolean active;
+
+        Burst(String nfId) {
+            this.nfId = nfId;
+        }
+    }
+
+    private static class Change {
+        private final String notificationName, meId, nfId, nfServiceId, sourceId, sourceName, oldState;
+        private String newState, nfSwVersion, nfServiceSwVersion;
+        private PodDetails podDetails;
+
+        Change(String notificationName, String meId, String nfId, String nfServiceId, String sourceId,
+               String sourceName, String oldState) {
+            this.notificationName = notificationName;
+            this.meId = meId;
+            this.nfId = nfId;
+            this.nfServiceId = nfServiceId;
+            this.sourceId = sourceId;
+            this.sourceName = sourceName;
+            this.oldState = oldState;
+        }
+    }
+
+    // guarded by this, as are the changes
+    private final Map<String, Burst> bursts = new HashMap<>();
+    private final Map<String, Map<String, Change>> changes = new HashMap<>();
+
+    // held by NF while its changes are taken and sent, outside of this
+    private final Map<String, Object> sendLocks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService timer;
+    private Counter folded;
+
+    @PostConstruct
+    public void start() {
+        folded = Counter.builder("tmaas.notifications.folded")
+                .description("NF and NFService state changes folded into the change of a scale burst").register(registry);
+        if (THRESHOLD <= 0)
+            return;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "scale-burst");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::expire, WINDOW_MS, WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (timer != null)
+            timer.shutdownNow();
+        List<String> nfIds;
+        synchronized (this) {
+            nfIds = new ArrayList<>(changes.keySet());
+        }
+        nfIds.forEach(this::send);
+    }
+
+    /**
+     * records a pod added to the NFService
+     *
+     * @return whether the NFService is in a burst, its state changes are then
+     * to be folded through {@link #stateChanged}
+     */
+    public synchronized boolean added(String nfId, String nfServiceKey) {
+        if (THRESHOLD <= 0)
+            return false;
+        long now = System.currentTimeMillis();
+        Burst burst = bursts.computeIfAbsent(nfServiceKey, key -> new Burst(nfId));
+        if (!burst.active && now - burst.windowStart > WINDOW_MS) {
+            burst.windowStart = now;
+            burst.adds = 0;
+        }
+        burst.adds++;
+        burst.lastAdd = now;
+        if (!burst.active && burst.adds >= THRESHOLD) {
+            LOG.info("Scale burst of NFService: [" + nfServiceKey + "], folding its state changes");
+            burst.active = true;
+        }
+        return burst.active;
+    }
+
+    /**
+     * folds an NF or NFService state change into the pending change of its source
+     */
+    public synchronized void stateChanged(String notificationName, String meId, String nfId, String nfServiceId,
+                                          String sourceId, String sourceName, String oldState, String newState,
+                                          PodDetails podDetails, String nfSwVersion, String nfServiceSwVersion) {
+        Map<String, Change> pending = changes.computeIfAbsent(nfId, id -> new LinkedHashMap<>());
+        Change change = pending.get(notificationName + "/" + sourceId);
+        if (change == null) {
+            change = new Change(notificationName, meId, nfId, nfServiceId, sourceId, sourceName, oldState);
+            pending.put(notificationName + "/" + sourceId, change);
+        } else {
+            folded.increment();
+        }
+        change.newState = newState;
+        change.podDetails = podDetails;
+        change.nfSwVersion = nfSwVersion;
+        change.nfServiceSwVersion = nfServiceSwVersion;
+    }
+
+    /**
+     * sends the folded changes of the NF, ahead of a change which is not folded;
+     * waits for changes of the NF the timer is sending
+     */
+    public void flush(String nfId) {
+        send(nfId);
+    }
+
+    private void expire() {
+        List<String> ended = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Burst> iterator = bursts.values().iterator();
+            while (iterator.hasNext()) {
+                Burst burst = iterator.next();
+                if (now - burst.lastAdd > WINDOW_MS)
+                    iterator.remove();
+            }
+            for (String nfId : changes.keySet()) {
+                if (bursts.values().stream().noneMatch(burst -> burst.active && burst.nfId.equals(nfId)))
+                    ended.add(nfId);
+            }
+        }
+        ended.forEach(this::send);
+    }
+
+    // taken under this and sent outside of it; the NF's send lock keeps a later change of the NF from overtaking them
+    private void send(String nfId) {
+        synchronized (sendLocks.computeIfAbsent(nfId, id -> new Object())) {
+            List<Change> sending;
+            synchronized (this) {
+                Map<String, Change> pending = changes.remove(nfId);
+                if (pending == null)
+                    return;
+                sending = new ArrayList<>(pending.values());
+            }
+            LOG.debug("Sending " + sending.size() + " folded state change(s) of NF ID: [" + nfId + "]");
+            for (Change change : sending) {
+                try {
+                    notifier.notify(change.notificationName, change.meId, change.nfId, change.nfServiceId, null,
+                            change.sourceId, change.sourceName, change.oldState, change.newState, change.podDetails,
+                            change.nfSwVersion, change.nfServiceSwVersion);
+                } catch (Exception e) {
+                    LOG.error("Unable to send " + change.notificationName + " for [" + change.sourceName + "]: "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.util;
+
+import org.xgvela.cnf.zk.ZKUtil;
+
+import java.util.UUID;
+
+/**
+ * DNs, IDs and ZK paths of an NF Service Instance and its parents, built once
+ * per pod and handed out by {@link TopoManager#identify}
+ */
+public class TopoIdentity {
+
+    private final String nfDn;
+    private final String nfId;
+    private final String nfPath;
+
+    private final String nfServiceDn;
+    private final String nfServiceId;
+    private final String nfServicePath;
+
+    private final String nfServiceInstanceDn;
+    private final String nfServiceInstanceId;
+    private final String nfServiceInstancePath;
+
+    TopoIdentity(String meLabel, String nfName, String nfServiceName, String podName) {
+        StringBuilder dn = new StringBuilder(meLabel.length() + 128).append(meLabel);
+
+        nfDn = dn.append(",NetworkFunction=").append(nfName).toString();
+        nfId = uuid(nfDn);
+        nfPath = ZKUtil.generatePath(nfId);
+
+        nfServiceDn = dn.append(",NFService=").append(nfServiceName).toString();
+        nfServiceId = uuid(nfServiceDn);
+        nfServicePath = nfPath + "/" + nfServiceId;
+
+        nfServiceInstanceDn = dn.append(",NFServiceInstance=").append(podName).toString();
+        nfServiceInstanceId = uuid(nfServiceInstanceDn);
+        nfServiceInstancePath = nfServicePath + "/" + nfServiceInstanceId;
+    }
+
+    static String uuid(String value) {
+        return UUID.nameUUIDFromBytes(value.getBytes()).toString();
+    }
+
+    public String getNfDn() {
+        return nfDn;
+    }
+
+    public String getNfId() {
+        return nfId;
+    }
+
+    public String getNfPath() {
+        return nfPath;
+    }
+
+    public String getNfServiceDn() {
+        return nfServiceDn;
+    }
+
+    public String getNfServiceId() {
+        return nfServiceId;
+    }
+
+    public String getNfServicePath() {
+        return nfServicePath;
+    }
+
+    public String getNfServiceInstanceDn() {
+        return nfServiceInstanceDn;
+    }
+
+    public String getNfServiceInstanceId() {
+        return nfServiceInstanceId;
+    }
+
+    public String getNfServiceInstancePath() {
+        return nfServiceInstancePath;
+    }
+}
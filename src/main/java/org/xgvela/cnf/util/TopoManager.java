@@ -17,27 +17,52 @@ package org.xgvela.cnf.util;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.xgvela.cnf.Constants;
+import org.xgvela.cnf.k8s.K8sCache;
 import org.xgvela.cnf.k8s.K8sUtil;
+import org.xgvela.cnf.k8s.NodeLabelIndex;
+import org.xgvela.cnf.kafka.PartitionScopedState;
 import org.xgvela.cnf.kafka.PodDetails;
+import org.xgvela.cnf.kafka.PodSnapshot;
 import org.xgvela.cnf.topo.*;
 import org.xgvela.cnf.zk.ZKManager;
 import org.xgvela.cnf.zk.ZKUtil;
+import org.xgvela.cnf.zk.ZKWriteBehind;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.api.model.apps.DaemonSet;
 import io.fabric8.kubernetes.api.model.apps.Deployment;
 import io.fabric8.kubernetes.api.model.apps.StatefulSet;
+import io.fabric8.kubernetes.client.Watcher.Action;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 @Component
-public class TopoManager {
+public class TopoManager implements PartitionScopedState {
 
     private static final Logger LOG = LogManager.getLogger(TopoManager.class);
     public static final String POD_ANNOTATION_NF_VERSION = "xgvela.com/tmaas.nf.nfVersion";
@@ -48,21 +73,109 @@ public class TopoManager {
     @Autowired
     Notifier notifier;
 
+    @Autowired
+    ScaleBurst scaleBurst;
+
     @Autowired
     K8sUtil k8s;
 
     @Autowired
     EtcdUtil etcd;
 
+    @Autowired
+    MeterRegistry registry;
+
     public static Map<String, String> SelfAnnotations = new HashMap<String, String>();
     public static ObjectMapper mapper = new ObjectMapper();
     public static ManagedElement me;
     public static String xgvelaId;
 
+    // guards the shared managed element across event lanes
+    private static final Object ME_LOCK = new Object();
+
+    private static final int IDENTITY_CACHE_SIZE = Integer.parseInt(System.getenv().getOrDefault("TOPO_IDENTITY_CACHE_SIZE", "10000"));
+
+    // identities of recently seen pods, least recently used go first
+    private final Map<String, TopoIdentity> identities = new LinkedHashMap<String, TopoIdentity>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TopoIdentity> eldest) {
+            return size() > IDENTITY_CACHE_SIZE;
+        }
+    };
+    private final Map<String, String> nfIdsByName = new ConcurrentHashMap<>();
+
+    private static final long TOMBSTONE_TTL_MS = Long.parseLong(System.getenv().getOrDefault("TOPO_TOMBSTONE_TTL_MS", "900000"));
+
+    // last applied resourceVersion per namespace/pod, grouped by NF ID
+    private final AppliedVersions appliedVersions = new AppliedVersions(new ZKTombstones(), TOMBSTONE_TTL_MS,
+            System::currentTimeMillis);
+
+    private static final int ENRICH_THREADS = Integer.parseInt(System.getenv().getOrDefault("TOPO_ENRICH_THREADS", "8"));
+    private static final long ENRICH_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("TOPO_ENRICH_TIMEOUT_MS", "10000"));
+
+    // K8s lookups of added pods, issued together; a full queue runs them on the lane itself
+    private final ExecutorService enricher = new ThreadPoolExecutor(ENRICH_THREADS, ENRICH_THREADS, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(ENRICH_THREADS * 16), new NamedThreadFactory("pod-enrichment"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private static final int PREPARE_THREADS = Integer.parseInt(System.getenv().getOrDefault("TOPO_PREPARE_THREADS", "8"));
+
+    // prepares queued pod events ahead of their lane, events beyond its queue are left to the lane
+    private final ExecutorService preparer = PREPARE_THREADS <= 0 ? null : new ThreadPoolExecutor(PREPARE_THREADS,
+            PREPARE_THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(PREPARE_THREADS * 64),
+            new NamedThreadFactory("pod-prepare"), new ThreadPoolExecutor.AbortPolicy());
+    private Counter staleEvents;
+    private Counter unchangedUpdates;
+    private Counter appliedUpdates;
+    private Counter roleUpdates;
+
+    @PostConstruct
+    public void init() {
+        staleEvents = Counter.builder("tmaas.events.stale")
+                .description("Pod events dropped as not newer than the state already applied").register(registry);
+        unchangedUpdates = Counter.builder("tmaas.tree.updates").tag("result", "unchanged")
+                .description("Pod updates which left the NF Service Instance as it was").register(registry);
+        appliedUpdates = Counter.builder("tmaas.tree.updates").tag("result", "applied")
+                .description("Pod updates which changed the NF Service Instance").register(registry);
+        roleUpdates = Counter.builder("tmaas.tree.updates").tag("result", "role")
+                .description("Pod updates which changed the HA role or MS Uid labels only").register(registry);
+        Gauge.builder("tmaas.zk.writes.pending", ZKWriteBehind::pending)
+                .description("Topology writes not yet applied to ZK").register(registry);
+        FunctionCounter.builder("tmaas.zk.writes.coalesced", this, manager -> ZKWriteBehind.coalesced())
+                .description("Topology writes superseded before they reached ZK").register(registry);
+        FunctionCounter.builder("tmaas.zk.transactions", this, manager -> ZKWriteBehind.transactions())
+                .description("ZK transactions committing topology writes").register(registry);
+        FunctionCounter.builder("tmaas.zk.writes.failed", this, manager -> ZKWriteBehind.failed())
+                .description("Topology mutations given up after ZK rejected them").register(registry);
+        Gauge.builder("tmaas.node.labels.size", NodeLabelIndex::size)
+                .description("Nodes whose labels are indexed").register(registry);
+        FunctionCounter.builder("tmaas.node.labels.lookups", this, manager -> NodeLabelIndex.hits()).tag("result", "hit")
+                .description("Node label lookups served by the index").register(registry);
+        FunctionCounter.builder("tmaas.node.labels.lookups", this, manager -> NodeLabelIndex.misses()).tag("result", "miss")
+                .description("Node label lookups which had to read the node").register(registry);
+        FunctionCounter.builder("tmaas.node.labels.evictions", this, manager -> NodeLabelIndex.evictions())
+                .description("Nodes dropped from the label index, least recently used or gone").register(registry);
+    }
+
+    /**
+     * the tree in ZK has to be complete before the process goes away
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (preparer != null)
+            preparer.shutdown();
+        enricher.shutdown();
+        ZKWriteBehind.flush(ZKWriteBehind.FLUSH_TIMEOUT_MS);
+    }
+
     public void createManagedElement() throws Exception {
         LOG.info("Creating a new root of Topology Tree");
 
         me = new ManagedElement();
+        synchronized (identities) {
+            identities.clear();
+        }
+        nfIdsByName.clear();
 
         SelfAnnotations = k8s.getTopoAnnotation();
 
@@ -111,32 +224,86 @@ public class TopoManager {
     }
 
     public String getUUID(String value) {
-        return UUID.nameUUIDFromBytes(value.getBytes()).toString();
+        return TopoIdentity.uuid(value);
+    }
+
+    /**
+     * ID of the NF, cached per NF name
+     */
+    public String getNfId(String nfName) {
+        String nfId = nfIdsByName.get(nfName);
+        if (nfId == null) {
+            if (nfIdsByName.size() >= IDENTITY_CACHE_SIZE)
+                nfIdsByName.clear();
+            nfId = getUUID(getNfDn(nfName));
+            nfIdsByName.put(nfName, nfId);
+        }
+        return nfId;
     }
 
-    public void updateManagedElement(PodDetails podDetails) throws Exception {
-        String nfDn = getNfDn(podDetails.getNfName());
-        String nfId = getUUID(nfDn);
+    /**
+     * DNs, IDs and ZK paths of the pod's NF Service Instance, cached per pod
+     */
+    public TopoIdentity identify(PodDetails podDetails) {
+        String key = podDetails.getNfName() + '/' + podDetails.getNfServiceName() + '/' + podDetails.getPodName();
+        synchronized (identities) {
+            TopoIdentity identity = identities.get(key);
+            if (identity != null)
+                return identity;
+        }
+        TopoIdentity identity = new TopoIdentity(me.getUserLabel(), podDetails.getNfName(),
+                podDetails.getNfServiceName(), podDetails.getPodName());
+        synchronized (identities) {
+            identities.put(key, identity);
+        }
+        return identity;
+    }
+
+    public CompletableFuture<Void> updateManagedElement(PodDetails podDetails) throws Exception {
+        return updateManagedElement(podDetails, null);
+    }
 
-        String nfServiceDn = getNfSvcDn(podDetails.getNfName(), podDetails.getNfServiceName());
-        String nfServiceId = getUUID(nfServiceDn);
+    /**
+     * commit stage of a pod event, context is what {@link #prepare} gathered
+     * for it, if anything. The znodes the event writes are committed to ZK in
+     * one transaction, written so far even if the event fails, as the tree in
+     * memory is changed already.
+     *
+     * @return completes once the writes of the event are in ZK
+     */
+    public CompletableFuture<Void> updateManagedElement(PodDetails podDetails, PodContext context) throws Exception {
+        ZKWriteBehind.Mutation mutation = ZKWriteBehind.begin();
+        try {
+            apply(podDetails, context);
+        } catch (Exception e) {
+            try {
+                mutation.commit();
+            } catch (Exception ce) {
+                e.addSuppressed(ce);
+            }
+            throw e;
+        }
+        return mutation.commit();
+    }
 
+    private void apply(PodDetails podDetails, PodContext context) throws Exception {
+        TopoIdentity id = context != null ? context.getId() : identify(podDetails);
 
-        String nfServiceInstanceDn = getNfSvcInsDn(podDetails.getNfName(), podDetails.getNfServiceName(),
-                podDetails.getPodName());
-        String nfServiceInstanceId = getUUID(nfServiceInstanceDn);
+        LOG.debug(podDetails.getAction() + ", NFServiceInstance DN: [" + id.getNfServiceInstanceDn() + "]");
 
-        LOG.debug(podDetails.getAction() + ", NFServiceInstance DN: [" + nfServiceInstanceDn + "]");
+        PodSnapshot snapshot = podDetails.getSnapshot();
+        if (snapshot != null && isStale(podDetails, id, snapshot.getResourceVersion()))
+            return;
 
         switch (podDetails.getAction()) {
             case ADDED:
-                addToTree(podDetails, nfId, nfDn, nfServiceId, nfServiceDn, nfServiceInstanceId, nfServiceInstanceDn);
+                addToTree(podDetails, id, context);
                 break;
             case MODIFIED:
-                updateInTree(nfServiceInstanceId, nfServiceId, nfId, podDetails);
+                updateInTree(podDetails, id, context);
                 break;
             case DELETED:
-                deleteFromTree(nfServiceInstanceId, nfServiceId, nfId, podDetails);
+                deleteFromTree(podDetails, id);
                 break;
             case ERROR:
                 break;
@@ -145,14 +312,332 @@ public class TopoManager {
         }
     }
 
-    public void addToTree(PodDetails podDetails, String nfId, String nfDn, String nfServiceId, String nfServiceDn,
-                          String nfServiceInstanceId, String nfServiceInstanceDn) throws Exception {
+    /**
+     * uses the pod snapshot of a v2 event when it is complete, the API server
+     * is only asked for v1 events or partial snapshots
+     */
+    private Pod fetchPod(PodDetails podDetails) {
+        PodSnapshot snapshot = podDetails.getSnapshot();
+        if (snapshot != null && snapshot.isComplete()) {
+            LOG.debug("Using event snapshot for Pod: [" + podDetails.getPodName() + "]");
+            return snapshot.toPod(podDetails.getPodName(), podDetails.getNamespace());
+        }
+        return k8s.getPod(podDetails.getPodName(), podDetails.getNamespace());
+    }
+
+    private Pod getPod(PodDetails podDetails, TopoIdentity id, PodContext context) {
+        boolean prefetched = context != null && context.isFetched();
+        Pod pod = prefetched ? context.getPod() : fetchPod(podDetails);
+        PodSnapshot snapshot = podDetails.getSnapshot();
+        if (snapshot != null && snapshot.isComplete())
+            return pod;
+
+        // the informer cache, or a fetch ahead of earlier events, may not have seen the change behind the event yet
+        if (pod != null && (prefetched || K8sCache.isSynced()) && pod.getMetadata() != null
+                && isNotNewer(podDetails, id, pod.getMetadata().getResourceVersion()))
+            pod = k8s.fetchPod(podDetails.getPodName(), podDetails.getNamespace());
+        return pod;
+    }
+
+    /**
+     * whether the pod state is not newer than the one last applied for the pod,
+     * for deletions only an older state is stale. The applied version is kept
+     * with the NF Service Instance in ZK and a deleted pod leaves a tombstone
+     * for TOPO_TOMBSTONE_TTL_MS, so events replayed after a restart, a
+     * rebalance or the deletion are dropped here before any ZK or notification
+     * work.
+     */
+    private boolean isStale(PodDetails podDetails, TopoIdentity id, String resourceVersion) {
+        if (!isNotNewer(podDetails, id, resourceVersion))
+            return false;
+
+        LOG.debug("Dropping stale " + podDetails.getAction() + " for Pod: [" + podDetails.getPodName()
+                + "], resourceVersion: " + resourceVersion);
+        staleEvents.increment();
+        return true;
+    }
+
+    private boolean isNotNewer(PodDetails podDetails, TopoIdentity id, String resourceVersion) {
+        return appliedVersions.isNotNewer(id.getNfId(), podKey(podDetails), parseVersion(resourceVersion),
+                podDetails.getAction() == Action.DELETED, () -> persistedVersion(id));
+    }
+
+    /**
+     * a pod the API server no longer has is handled as terminated, its DELETED
+     * event is behind or already applied
+     */
+    private boolean isGone(PodDetails podDetails, TopoIdentity id, Pod pod) throws Exception {
+        if (pod != null)
+            return false;
+        LOG.info("Pod: [" + podDetails.getPodName() + "], Namespace: [" + podDetails.getNamespace()
+                + "] no longer exists, " + podDetails.getAction() + " handled as deletion");
+        deleteFromTree(podDetails, id);
+        return true;
+    }
+
+    private boolean isStale(PodDetails podDetails, TopoIdentity id, Pod pod) {
+        return pod != null && pod.getMetadata() != null
+                && isStale(podDetails, id, pod.getMetadata().getResourceVersion());
+    }
+
+    private void applied(PodDetails podDetails, TopoIdentity id, Pod pod) {
+        appliedVersions.applied(id.getNfId(), podKey(podDetails), parseVersion(pod.getMetadata().getResourceVersion()));
+    }
+
+    // version the instance of the pod was last written with, -1 if it is not in the tree
+    private long persistedVersion(TopoIdentity id) {
+        if (!me.has(id.getNfPath()) || !me.get(id.getNfPath()).has(id.getNfServicePath()))
+            return -1;
+        NFService nfService = me.get(id.getNfPath()).get(id.getNfServicePath());
+        if (!nfService.has(id.getNfServiceInstancePath()))
+            return -1;
+        return parseVersion(nfService.get(id.getNfServiceInstancePath()).getResourceVersion());
+    }
+
+    private static String podKey(PodDetails podDetails) {
+        return podDetails.getNamespace() + "/" + podDetails.getPodName();
+    }
+
+    // resourceVersion is opaque to clients, states which do not carry a number are never stale
+    private static long parseVersion(String resourceVersion) {
+        if (resourceVersion == null)
+            return -1;
+        try {
+            return Long.parseLong(resourceVersion);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * persists the RCP flag in the managed element. Replicas own the NFs of
+     * their partitions only, so /me is updated under its znode version instead
+     * of being overwritten with the view of this replica.
+     */
+    private void updateRcp() throws Exception {
+        ZKManager.updateData(ZKUtil.generatePath(), data -> {
+            ManagedElement stored = mapper.readValue(data, ManagedElement.class);
+            stored.setRcp(stored.isRcp() || me.isRcp());
+            return mapper.writeValueAsBytes(stored);
+        });
+    }
+
+    /**
+     * caches the NFs of a newly assigned partition along with the versions their
+     * pods were applied at
+     */
+    @Override
+    public void load(int partition, Set<String> nfIds) {
+        if (me == null)
+            return;
+        refreshRcp();
+        for (String nfId : nfIds) {
+            if (!me.has(ZKUtil.generatePath(nfId))) {
+                LOG.debug("NF ID: [" + nfId + "] of partition " + partition + " is not in the tree");
+                continue;
+            }
+            try {
+                Map<String, Long> instanceVersions = new HashMap<>();
+                for (NFService nfService : me.get(ZKUtil.generatePath(nfId)).getServiceOfNf()) {
+                    for (NFServiceInstance instance : nfService.getNfServiceInstances(nfId)) {
+                        long version = parseVersion(instance.getResourceVersion());
+                        PodDetails podDetails = instance.getPodDetails();
+                        if (version >= 0 && podDetails != null)
+                            instanceVersions.put(podKey(podDetails), version);
+                    }
+                }
+                appliedVersions.load(nfId, instanceVersions);
+            } catch (Exception e) {
+                LOG.error("Unable to load NF ID: [" + nfId + "] of partition " + partition + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * forgets the NFs of a revoked partition, their tree stays in ZK for the new owner
+     */
+    @Override
+    public void drop(int partition, Set<String> nfIds) {
+        if (me == null)
+            return;
+        try {
+            // the new owner reads the NFs back from ZK
+            ZKWriteBehind.flush(ZKWriteBehind.FLUSH_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String nfId : nfIds) {
+            me.getElem().remove(ZKUtil.generatePath(nfId));
+            appliedVersions.drop(nfId);
+        }
+    }
+
+    /**
+     * takes over the RCP flag persisted by other replicas, pods of this replica
+     * may all be deleted before one of them is added
+     */
+    private void refreshRcp() {
+        synchronized (ME_LOCK) {
+            try {
+                byte[] data = ZKManager.getData(ZKUtil.generatePath());
+                me.setRcp(me.isRcp() || TopoManager.mapper.readValue(data, ManagedElement.class).isRcp());
+            } catch (Exception e) {
+                LOG.debug("Unable to read " + ZKUtil.generatePath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * enrichment stage of a pod event: its identity, the pod and, for an added
+     * pod, the K8s lookups it is built from. The tree is not changed, so the
+     * events of all NFs are prepared at once on TOPO_PREPARE_THREADS workers
+     * while their commits stay in order per NF.
+     *
+     * @return null if the workers are saturated or disabled, the event then
+     * gathers what it needs when committed
+     */
+    public CompletableFuture<PodContext> prepare(PodDetails podDetails) {
+        if (preparer == null || me == null)
+            return null;
+        try {
+            TopoIdentity id = identify(podDetails);
+            switch (podDetails.getAction()) {
+                case ADDED:
+                    return CompletableFuture.supplyAsync(() -> fetchPod(podDetails), preparer)
+                            .thenCompose(pod -> pod == null ? CompletableFuture.completedFuture(new PodContext(id, null))
+                                    : resolve(id, pod, podDetails));
+                case MODIFIED:
+                    return CompletableFuture.supplyAsync(() -> new PodContext(id, fetchPod(podDetails)), preparer);
+                default:
+                    return CompletableFuture.completedFuture(new PodContext(id));
+            }
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * context of a retried event: the pod read back from the API server, so
+     * that the retry is checked for staleness against the pod as it is now and
+     * does not overtake a later deletion
+     */
+    public PodContext refresh(PodDetails podDetails) {
+        TopoIdentity id = identify(podDetails);
+        if (podDetails.getAction() != Action.ADDED && podDetails.getAction() != Action.MODIFIED)
+            return new PodContext(id);
+        return new PodContext(id, k8s.fetchPod(podDetails.getPodName(), podDetails.getNamespace()));
+    }
+
+    /**
+     * waits for a context from {@link #prepare}, null if there is none
+     */
+    public PodContext prepared(CompletableFuture<PodContext> context) {
+        if (context == null)
+            return null;
+        try {
+            return context.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.debug("Pod event not prepared, gathering on commit: " + e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * looks up owner, node labels and, for a new NF, the namespace software
+     * version of an added pod at once; each lookup is bounded by
+     * TOPO_ENRICH_TIMEOUT_MS
+     */
+    private CompletableFuture<PodContext> resolve(TopoIdentity id, Pod pod, PodDetails podDetails) {
+        String namespace = podDetails.getNamespace();
+        String kind = k8s.getOwnerKind(pod);
+        Map<String, String> podAnnotations = pod.getMetadata().getAnnotations();
+        String nfVersion = podAnnotations == null ? null : podAnnotations.get(POD_ANNOTATION_NF_VERSION);
+
+        // NFs only loaded from ZK later look it up on commit
+        boolean nfSwVersionNeeded = (nfVersion == null || nfVersion.isBlank()) && me.get(id.getNfPath()) == null;
 
-        if (me.has(ZKUtil.generatePath(nfId)) && me.get(ZKUtil.generatePath(nfId)).has(ZKUtil.generatePath(nfId, nfServiceId)) && me.get(ZKUtil.generatePath(nfId)).get(ZKUtil.generatePath(nfId, nfServiceId)).has(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId))) {
+        CompletableFuture<Object> owner = lookup(() -> k8s.getOwner(podDetails.getNfServiceName(), namespace, kind));
+        CompletableFuture<Map<String, String>> nodeLabels = lookup(() -> k8s.getNodeLabels(pod.getSpec().getNodeName()));
+        CompletableFuture<String> nfSwVersion = nfSwVersionNeeded ? lookup(() -> k8s.getNfSwVersion(namespace))
+                : CompletableFuture.completedFuture(null);
+
+        // no I/O, parsed meanwhile
+        List<PodNetworksStatus> nws = k8s.getNetworkStatus(pod);
+        return CompletableFuture.allOf(owner, nodeLabels, nfSwVersion).thenApply(done -> new PodContext(id, pod,
+                owner.join(), nodeLabels.join(), nws, nfSwVersion.join()));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private <T> CompletableFuture<T> lookup(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, enricher).orTimeout(ENRICH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // tombstones of deleted pods under /tmaas/tombstones/<nfId>/<namespace>:<pod>
+    private static class ZKTombstones implements AppliedVersions.Store {
+
+        @Override
+        public Map<String, AppliedVersions.Tombstone> tombstones(String nfId) throws Exception {
+            Map<String, AppliedVersions.Tombstone> tombstones = new HashMap<>();
+            for (String child : ZKWriteBehind.getChildren(ZKUtil.generatePathForTombstone(nfId))) {
+                byte[] data = ZKWriteBehind.getData(ZKUtil.generatePathForTombstone(nfId, child));
+                tombstones.put(child.replace(':', '/'),
+                        AppliedVersions.Tombstone.parse(new String(data, StandardCharsets.UTF_8)));
+            }
+            return tombstones;
+        }
+
+        @Override
+        public void tombstone(String nfId, String podKey, AppliedVersions.Tombstone tombstone) throws Exception {
+            ZKWriteBehind.set(ZKUtil.generatePathForTombstone(nfId, podKey.replace('/', ':')),
+                    tombstone.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void remove(String nfId, String podKey) {
+            ZKWriteBehind.delete(ZKUtil.generatePathForTombstone(nfId, podKey.replace('/', ':')));
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public void addToTree(PodDetails podDetails, TopoIdentity id) throws Exception {
+        addToTree(podDetails, id, null);
+    }
+
+    private void addToTree(PodDetails podDetails, TopoIdentity id, PodContext context) throws Exception {
+        String nfId = id.getNfId(), nfDn = id.getNfDn();
+        String nfServiceId = id.getNfServiceId(), nfServiceDn = id.getNfServiceDn();
+        String nfServiceInstanceId = id.getNfServiceInstanceId(), nfServiceInstanceDn = id.getNfServiceInstanceDn();
+
+        if (me.has(id.getNfPath()) && me.get(id.getNfPath()).has(id.getNfServicePath()) && me.get(id.getNfPath()).get(id.getNfServicePath()).has(id.getNfServiceInstancePath())) {
 
             // key already present, treat as modified notification
             LOG.info("NF Service Instance: [" + nfServiceInstanceDn + "] already present, redirecting to update method");
-            updateInTree(nfServiceInstanceId, nfServiceId, nfId, podDetails);
+            updateInTree(podDetails, id, context);
             return;
         }
 
@@ -163,13 +648,17 @@ public class TopoManager {
         LOG.info("Pod: [" + podName + "], Microservice: [" + microservice + "], Namespace: [" + namespace + "]");
 
         // get pod, owner kind and pod state
-        Pod pod = k8s.getPod(podName, namespace);
+        Pod pod = getPod(podDetails, id, context);
+        if (isGone(podDetails, id, pod) || isStale(podDetails, id, pod))
+            return;
         String kind = k8s.getOwnerKind(pod);
         State state = k8s.getNfServiceInstanceState(pod);
         Map<String, String> podAnnotations = pod.getMetadata().getAnnotations();
 
+        boolean rcpDetected = false;
         if (kind.equals("RobinRole")) {
             LOG.info("################### RCP platform, relying on " + Constants.TMAAS_NFS_MIN_ACTIVE + " annotation");
+            rcpDetected = !me.isRcp();
             me.setRcp(true);
         }
 
@@ -177,7 +666,10 @@ public class TopoManager {
             case READY:
             case NOT_READY:
                 try {
-                    Object owner = k8s.getOwner(microservice, namespace, kind);
+                    // looked up ahead unless the pod had to be fetched again
+                    if (context == null || !context.isResolved() || context.getPod() != pod)
+                        context = await(resolve(id, pod, podDetails));
+                    Object owner = context.getOwner();
                     if (owner != null) {
 
                         // create nf service instance
@@ -187,16 +679,14 @@ public class TopoManager {
                         nfServiceInstance.setDnPrefix(me.getDnPrefix());
                         nfServiceInstance.setUserLabel(nfServiceInstanceDn);
                         nfServiceInstance.setName(podName);
-                        nfServiceInstance.setNws(k8s.getNetworkStatus(pod));
+                        nfServiceInstance.setNws(context.getNws());
 
                         // get pod labels
                         Map<String, String> podLabels = pod.getMetadata().getLabels();
 
-                        // get node labels
-                        String nodeName = pod.getSpec().getNodeName();
-                        Map<String, String> nodeLabels = k8s.getNodeLabels(nodeName);
-
-                        nfServiceInstance.setExtendedAttrs(k8s.mergeLabels(podLabels, nodeLabels));
+                        nfServiceInstance.setExtendedAttrs(k8s.mergeLabels(podLabels, context.getNodeLabels()));
+                        // so that the first role change takes the fast path of updateInTree
+                        nfServiceInstance.setInputs(new PodInputs(pod, context.getNodeLabels()));
 
                         String haRole = Constants.NA; // default value in case empty or N/A
                         if (podLabels.containsKey(Constants.LABEL_HA_ROLE)
@@ -213,23 +703,24 @@ public class TopoManager {
                         nfServiceInstance.setMsUid(msUid);
                         nfServiceInstance.setState(state);
                         nfServiceInstance.setPodDetails(podDetails);
+                        nfServiceInstance.setResourceVersion(pod.getMetadata().getResourceVersion());
 
                         NetworkFunction networkFunction;
                         NFService nfService;
 
                         boolean nfServiceCreated = false, nfCreated = false;
 
-                        if (me.has(ZKUtil.generatePath(nfId))) {
+                        if (me.has(id.getNfPath())) {
 
                             // nf exists
                             LOG.debug("NF ID: [" + nfId + "] exists");
-                            networkFunction = me.get(ZKUtil.generatePath(nfId));
+                            networkFunction = me.get(id.getNfPath());
 
-                            if (networkFunction.has(ZKUtil.generatePath(nfId, nfServiceId))) {
+                            if (networkFunction.has(id.getNfServicePath())) {
 
                                 // get nf service
                                 LOG.debug("NF Service ID: [" + nfServiceId + "] exists");
-                                nfService = networkFunction.get(ZKUtil.generatePath(nfId, nfServiceId));
+                                nfService = networkFunction.get(id.getNfServicePath());
                             } else {
 
                                 // create nf service
@@ -250,7 +741,8 @@ public class TopoManager {
                             //the value from namespace which sets default value if no version configured
                             networkFunction.setSwVersion(podAnnotations.get(POD_ANNOTATION_NF_VERSION));
                             if (networkFunction.getSwVersion() == null || networkFunction.getSwVersion().isBlank()) {
-                                networkFunction.setSwVersion(k8s.getNfSwVersion(namespace));
+                                networkFunction.setSwVersion(context.getNfSwVersion() != null ? context.getNfSwVersion()
+                                        : k8s.getNfSwVersion(namespace));
                             }
                             LOG.debug("NetworkFunction with nfid +["+nfId+"] , is set with SwVersion : "+ networkFunction.getSwVersion());
                             networkFunction.setName(podDetails.getNfName());
@@ -264,7 +756,7 @@ public class TopoManager {
 
                         LOG.debug("Updating NF Service ID: [" + nfServiceId + "]");
                         State nfServiceOldState = nfService.getState();
-                        nfService.addElem(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId), nfServiceInstance);
+                        nfService.addElem(id.getNfServiceInstancePath(), nfServiceInstance);
 
                         // get annotations/ set instance count/ get k8s uid
                       //  Map<String, String> ownerAnnotations = new HashMap<>();
@@ -328,7 +820,7 @@ public class TopoManager {
                         //nfservice instance being added with the svc version
                         nfServiceInstance.setSvcVersion(NFSI_VERSION_KEY, podAnnotations.getOrDefault(POD_ANNOTATION_SVC_VERSION, "v0"));
                         LOG.debug("nfservice instance was set with service version " + nfServiceInstance);
-                        ZKManager.updateData(ZKUtil.generatePath(nfId, nfService.getId(), nfServiceInstance.getId()), TopoManager.mapper.writeValueAsBytes(nfServiceInstance));
+                        ZKWriteBehind.set(id.getNfServiceInstancePath(), TopoManager.mapper.writeValueAsBytes(nfServiceInstance));
 
                         //See if nfs is undergoing upgrade if not, check if upgrade is required
                         if (nfService.getUpgradeVersion(UPGRADEVERSION_KEY) == null) {
@@ -368,9 +860,9 @@ public class TopoManager {
                         }
                         //upgrade logic completed
 
-                        nfService.update(nfId);
+                        nfService.update(nfId, id.getNfServiceInstancePath());
 
-                        ZKManager.updateData(ZKUtil.generatePath(nfId, nfService.getId()), TopoManager.mapper.writeValueAsBytes(nfService));
+                        ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(nfService));
 
                         // update nf
                         LOG.debug("Updating NF ID: [" + nfId + "]");
@@ -399,13 +891,17 @@ public class TopoManager {
                         }
 
                         State networkFunctionOldState = networkFunction.getState();
-                        networkFunction.addElem(ZKUtil.generatePath(nfId, nfServiceId), nfService);
-                        networkFunction.update();
-                        ZKManager.updateData(ZKUtil.generatePath(nfId), TopoManager.mapper.writeValueAsBytes(networkFunction));
+                        networkFunction.addElem(id.getNfServicePath(), nfService);
+                        networkFunction.update(id.getNfServicePath());
+                        ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunction));
 
                         // update managed element
-                        me.addElem(ZKUtil.generatePath(nfId), networkFunction);
-                        ZKManager.updateData(ZKUtil.generatePath(), TopoManager.mapper.writeValueAsBytes(me));
+                        synchronized (ME_LOCK) {
+                            me.addElem(id.getNfPath(), networkFunction);
+                            // /me only changes with the RCP flag, NFs are its znode children
+                            if (rcpDetected)
+                                updateRcp();
+                        }
 
 
                         // nf created/modified notification
@@ -413,10 +909,18 @@ public class TopoManager {
                             notifier.notify(Constants.NF_CREATED, me.getId(), nfId, null, null, nfId, nfDn, null, null,
                                     podDetails, networkFunction.getSwVersion(), null);
 
-                        // state change event raise for NF
-                        notifier.notify(Constants.NF_STATE_CHANGED, me.getId(), nfId, null, null, nfId, nfDn,
-                                networkFunctionOldState.toString(), networkFunction.getState().toString(), podDetails,
-                                networkFunction.getSwVersion(), null);
+                        // state change event raise for NF, folded while the NFService scales in a burst
+                        boolean burst = scaleBurst.added(nfId, id.getNfServicePath());
+                        if (burst) {
+                            scaleBurst.stateChanged(Constants.NF_STATE_CHANGED, me.getId(), nfId, null, nfId, nfDn,
+                                    networkFunctionOldState.toString(), networkFunction.getState().toString(), podDetails,
+                                    networkFunction.getSwVersion(), null);
+                        } else {
+                            scaleBurst.flush(nfId);
+                            notifier.notify(Constants.NF_STATE_CHANGED, me.getId(), nfId, null, null, nfId, nfDn,
+                                    networkFunctionOldState.toString(), networkFunction.getState().toString(), podDetails,
+                                    networkFunction.getSwVersion(), null);
+                        }
 
                         // nf service created/modified notification
                         if (nfServiceCreated)
@@ -425,9 +929,15 @@ public class TopoManager {
                                     nfService.getSwVersion());
 
                         // state change event raise for NFService
-                        notifier.notify(Constants.NFS_STATE_CHANGED, me.getId(), nfId, nfServiceId, null, nfServiceId,
-                                nfServiceDn, nfServiceOldState.toString(), nfService.getState().toString(), podDetails,
-                                networkFunction.getSwVersion(), nfService.getSwVersion());
+                        if (burst)
+                            scaleBurst.stateChanged(Constants.NFS_STATE_CHANGED, me.getId(), nfId, nfServiceId,
+                                    nfServiceId, nfServiceDn, nfServiceOldState.toString(),
+                                    nfService.getState().toString(), podDetails, networkFunction.getSwVersion(),
+                                    nfService.getSwVersion());
+                        else
+                            notifier.notify(Constants.NFS_STATE_CHANGED, me.getId(), nfId, nfServiceId, null, nfServiceId,
+                                    nfServiceDn, nfServiceOldState.toString(), nfService.getState().toString(), podDetails,
+                                    networkFunction.getSwVersion(), nfService.getSwVersion());
 
                         // notification for new NF Service Instance created
                         notifier.notify(Constants.NFSI_CREATED, me.getId(), nfId, nfServiceId, nfServiceInstanceId,
@@ -442,18 +952,21 @@ public class TopoManager {
                                 nfService.getSwVersion(), nfService.isHaEnabled(), nfServiceInstance.getHaRole(),
                                 nfServiceInstance.getMsUid(), Constants.STATE, nfServiceInstance.getExtendedAttrs());
 
+                        applied(podDetails, id, pod);
                     } else {
-                        LOG.error("Microservice controller (deployment/daemon set/stateful set) not found with name: "
+                        // the owner may not be visible yet, fail so that the event is retried
+                        throw new IllegalStateException("Microservice controller (deployment/daemon set/stateful set) not found with name: "
                                 + microservice + " in namespace: " + namespace + ", unable to process further");
                     }
                     break;
                 } catch (Exception e) {
                     LOG.error("exception while processing add event", e);
+                    throw e;
                 }
 
             case TERMINATED:
                 LOG.debug("State of NF Service Instance is Terminated, removing from tree");
-                deleteFromTree(nfServiceInstanceId, nfServiceId, nfId, podDetails);
+                deleteFromTree(podDetails, id);
                 break;
 
             case NULL:
@@ -465,7 +978,9 @@ public class TopoManager {
         }
     }
 
-    private void updateInTree(String nfServiceInstanceId, String nfServiceId, String nfId, PodDetails podDetails) throws Exception {
+    private void updateInTree(PodDetails podDetails, TopoIdentity id, PodContext context) throws Exception {
+        String nfId = id.getNfId(), nfServiceId = id.getNfServiceId(), nfServiceInstanceId = id.getNfServiceInstanceId();
+        scaleBurst.flush(nfId);
 
         String microservice = podDetails.getNfServiceName();
         String namespace = podDetails.getNamespace();
@@ -475,75 +990,106 @@ public class TopoManager {
 
         // get instance state
         LOG.debug("Updating NF Service Instance ID: [" + nfServiceInstanceId + "]");
-        Pod pod = k8s.getPod(podName, namespace);
+        Pod pod = getPod(podDetails, id, context);
+        if (isGone(podDetails, id, pod) || isStale(podDetails, id, pod))
+            return;
         State nfServiceInstanceNewState = k8s.getNfServiceInstanceState(pod);
-        if (me.has(ZKUtil.generatePath(nfId))) {
-            NetworkFunction networkFunc = me.get(ZKUtil.generatePath(nfId));
-            if (networkFunc.has(ZKUtil.generatePath(nfId, nfServiceId))) {
-                NFService nfService = networkFunc.get(ZKUtil.generatePath(nfId, nfServiceId));
-                if (nfService.has(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId))) {
-                    NFServiceInstance nfServiceInst = nfService.get(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId));
+        if (me.has(id.getNfPath())) {
+            NetworkFunction networkFunc = me.get(id.getNfPath());
+            if (networkFunc.has(id.getNfServicePath())) {
+                NFService nfService = networkFunc.get(id.getNfServicePath());
+                if (nfService.has(id.getNfServiceInstancePath())) {
+                    NFServiceInstance nfServiceInst = nfService.get(id.getNfServiceInstancePath());
                     if (!nfServiceInstanceNewState.equals(State.NULL)
                             && !nfServiceInstanceNewState.equals(State.TERMINATED)) {
 
-                        // update nf service instance state
-                        LOG.debug("Pod exists, updating in tree");
-                        State nfServiceInstanceOldState = nfServiceInst.getState();
-                        nfServiceInst.setState(nfServiceInstanceNewState);
-                        LOG.info("NFService instance state transition Pod: [" + podName + "]" + " oldstate : " + nfServiceInstanceOldState + " new state " + nfServiceInstanceNewState);
+                        // persisted with the next write of the instance
+                        nfServiceInst.setResourceVersion(pod.getMetadata().getResourceVersion());
 
                         // get pod labels
                         Map<String, String> podLabels = pod.getMetadata().getLabels();
 
-                        // get node labels
+                        // new ha role
+                        String newHaRole = Constants.NA;
+                        if (podLabels.containsKey(Constants.LABEL_HA_ROLE)
+                                && !podLabels.get(Constants.LABEL_HA_ROLE).isEmpty()) {
+                            newHaRole = podLabels.get(Constants.LABEL_HA_ROLE);
+                        }
+
+                        // new MS Uid
+                        String newMsUid = Constants.NULL;
+                        if (podLabels.containsKey(Constants.LABEL_MS_UID)
+                                && !podLabels.get(Constants.LABEL_MS_UID).isEmpty()) {
+                            newMsUid = podLabels.get(Constants.LABEL_MS_UID);
+                        }
+
+                        // only the state or role labels can differ, networks are as applied
                         String nodeName = pod.getSpec().getNodeName();
                         Map<String, String> nodeLabels = k8s.getNodeLabels(nodeName);
+                        PodInputs inputs = new PodInputs(pod, nodeLabels);
+                        if (inputs.equals(nfServiceInst.getInputs())
+                                && nfServiceInstanceNewState.equals(nfServiceInst.getState())) {
+                            if (newHaRole.equals(nfServiceInst.getHaRole()) && newMsUid.equals(nfServiceInst.getMsUid())) {
+                                LOG.debug("NF Service Instance ID: [" + nfServiceInstanceId + "] unchanged, skipping update");
+                                unchangedUpdates.increment();
+                            } else {
+                                updateRole(podDetails, id, networkFunc, nfService, nfServiceInst, podLabels, newHaRole,
+                                        newMsUid);
+                            }
+                            applied(podDetails, id, pod);
+                            return;
+                        }
 
                         //Need to merge nfsi version as k8s mergeLabel will override the value
-                        String nfInstSwVersion = nfServiceInst.getSvcVersion(NFSI_VERSION_KEY);
+                        Map<String, String> extendedAttrs = k8s.mergeLabels(podLabels, nodeLabels);
+                        extendedAttrs.put(NFSI_VERSION_KEY, nfServiceInst.getSvcVersion(NFSI_VERSION_KEY));
+
+                        List<PodNetworksStatus> nws = k8s.getNetworkStatus(pod);
+
+                        // nothing the tree holds has changed, no writes, recounts or notifications
+                        if (nfServiceInst.matches(nfServiceInstanceNewState, newHaRole, newMsUid, nws, extendedAttrs)) {
+                            LOG.debug("NF Service Instance ID: [" + nfServiceInstanceId + "] unchanged, skipping update");
+                            nfServiceInst.setInputs(inputs);
+                            unchangedUpdates.increment();
+                            applied(podDetails, id, pod);
+                            return;
+                        }
+                        appliedUpdates.increment();
 
-                        nfServiceInst.setExtendedAttrs(k8s.mergeLabels(podLabels, nodeLabels));
-                        nfServiceInst.setSvcVersion(NFSI_VERSION_KEY, nfInstSwVersion);
+                        // update nf service instance state
+                        LOG.debug("Pod exists, updating in tree");
+                        State nfServiceInstanceOldState = nfServiceInst.getState();
+                        nfServiceInst.setState(nfServiceInstanceNewState);
+                        LOG.info("NFService instance state transition Pod: [" + podName + "]" + " oldstate : " + nfServiceInstanceOldState + " new state " + nfServiceInstanceNewState);
 
-                        // store old HA role
-                        String oldHaRole = nfServiceInst.getHaRole();
+                        nfServiceInst.setExtendedAttrs(extendedAttrs);
 
-                        // update nf service instance ha role, store new role
-                        String newHaRole = Constants.NA;
-                        if (pod.getMetadata().getLabels().containsKey(Constants.LABEL_HA_ROLE)
-                                && !pod.getMetadata().getLabels().get(Constants.LABEL_HA_ROLE).isEmpty()) {
-                            newHaRole = pod.getMetadata().getLabels().get(Constants.LABEL_HA_ROLE);
-                        }
+                        // store old HA role, update nf service instance ha role
+                        String oldHaRole = nfServiceInst.getHaRole();
                         nfServiceInst.setHaRole(newHaRole);
 
-                        // store old MS Uid
+                        // store old MS Uid, update nf service instance msuid
                         String oldMsUid = nfServiceInst.getMsUid();
-
-                        // update nf service instance msuid, store new MS Uid
-                        String newMsUid = Constants.NULL;
-                        if (pod.getMetadata().getLabels().containsKey(Constants.LABEL_MS_UID)
-                                && !pod.getMetadata().getLabels().get(Constants.LABEL_MS_UID).isEmpty()) {
-                            newMsUid = pod.getMetadata().getLabels().get(Constants.LABEL_MS_UID);
-                        }
                         nfServiceInst.setMsUid(newMsUid);
 
                         // update network status
-                        nfServiceInst.setNws(k8s.getNetworkStatus(pod));
-                        ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId), TopoManager.mapper.writeValueAsBytes(nfServiceInst));
+                        nfServiceInst.setNws(nws);
+                        nfServiceInst.setInputs(inputs);
+                        ZKWriteBehind.set(id.getNfServiceInstancePath(), TopoManager.mapper.writeValueAsBytes(nfServiceInst));
                         // update nf service state
                         LOG.debug("Updating NF Service ID: [" + nfServiceId + "]");
                         State nfServiceOldState = nfService.getState();
-                        nfService.update(nfId);
+                        nfService.update(nfId, id.getNfServiceInstancePath());
                         State nfServiceNewState = nfService.getState();
-                        ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId), TopoManager.mapper.writeValueAsBytes(nfService));
+                        ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(nfService));
 
                         // update nf state
                         LOG.debug("Updating NF ID: [" + nfId + "]");
                         State nfOldState = networkFunc.getState();
-                        networkFunc.update();
+                        networkFunc.update(id.getNfServicePath());
                         State nfNewState = networkFunc.getState();
                         //update the instance ,service,  nf in database
-                        ZKManager.updateData(ZKUtil.generatePath(nfId), TopoManager.mapper.writeValueAsBytes(networkFunc));
+                        ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunc));
 
                         // state change event raise for NF
                         notifier.notify(Constants.NF_STATE_CHANGED, me.getId(), nfId, null, null, nfId,
@@ -574,11 +1120,12 @@ public class TopoManager {
                                     nfService.isHaEnabled(), newHaRole, newMsUid,
                                     Constants.HA_ROLE, nfServiceInst.getExtendedAttrs());
                         }
+                        applied(podDetails, id, pod);
                     } else {
 
                         // pod does not exist, delete nf service instance from tree
                         LOG.debug("Pod does not exist anymore, invoking deletion of NF Service Instance");
-                        deleteFromTree(nfServiceInstanceId, nfServiceId, nfId, podDetails);
+                        deleteFromTree(podDetails, id);
                     }
                 } else {
 
@@ -599,33 +1146,98 @@ public class TopoManager {
         }
     }
 
-    private void deleteFromTree(String nfServiceInstanceId, String nfServiceId, String nfId, PodDetails podDetails) throws Exception {
+    // whether the NF Service has no instance left, by its counters; unknown counts as not empty
+    private static boolean hasNoInstances(NFService nfService, String nfId) {
+        try {
+            return nfService.countOfInstances(nfId) == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * applies a pod update which changed the HA role or MS Uid labels only: the
+     * instance and its NFService counters are updated, the NF only if the
+     * NFService state changed with them
+     */
+    private void updateRole(PodDetails podDetails, TopoIdentity id, NetworkFunction networkFunc, NFService nfService,
+                            NFServiceInstance nfServiceInst, Map<String, String> podLabels, String newHaRole,
+                            String newMsUid) throws Exception {
+        String nfId = id.getNfId(), nfServiceId = id.getNfServiceId(), nfServiceInstanceId = id.getNfServiceInstanceId();
+        LOG.debug("NF Service Instance ID: [" + nfServiceInstanceId + "] role labels changed");
+        roleUpdates.increment();
+
+        String oldHaRole = nfServiceInst.getHaRole();
+        String oldMsUid = nfServiceInst.getMsUid();
+        nfServiceInst.setHaRole(newHaRole);
+        nfServiceInst.setMsUid(newMsUid);
+
+        // the labels are part of the extended attributes as well, updated in place so node labels stay shared
+        Map<String, String> extendedAttrs = nfServiceInst.getExtendedAttrs();
+        for (String label : new String[] { Constants.LABEL_HA_ROLE, Constants.LABEL_MS_UID }) {
+            if (podLabels.containsKey(label))
+                extendedAttrs.put(label, podLabels.get(label));
+            else
+                extendedAttrs.remove(label);
+        }
+        ZKWriteBehind.set(id.getNfServiceInstancePath(), TopoManager.mapper.writeValueAsBytes(nfServiceInst));
+
+        // an HA role moves the active ready count
+        State nfServiceOldState = nfService.getState();
+        nfService.update(nfId, id.getNfServiceInstancePath());
+        State nfServiceNewState = nfService.getState();
+        ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(nfService));
+
+        if (!nfServiceNewState.equals(nfServiceOldState)) {
+            State nfOldState = networkFunc.getState();
+            networkFunc.update(id.getNfServicePath());
+            State nfNewState = networkFunc.getState();
+            ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunc));
+
+            notifier.notify(Constants.NF_STATE_CHANGED, me.getId(), nfId, null, null, nfId,
+                    networkFunc.getUserLabel(), nfOldState.toString(), nfNewState.toString(), podDetails,
+                    networkFunc.getSwVersion(), null);
+            notifier.notify(Constants.NFS_STATE_CHANGED, me.getId(), nfId, nfServiceId, null, nfServiceId,
+                    nfService.getUserLabel(), nfServiceOldState.toString(), nfServiceNewState.toString(),
+                    podDetails, networkFunc.getSwVersion(), nfService.getSwVersion());
+        }
+
+        // role change event for NFServiceInstance
+        notifier.notify(Constants.NFSI_STATE_CHANGED, me.getId(), nfId, nfServiceId, nfServiceInstanceId,
+                nfServiceInstanceId, nfServiceInst.getUserLabel(), oldHaRole, newHaRole, podDetails,
+                networkFunc.getSwVersion(), nfService.getSwVersion(), nfService.isHaEnabled(), newHaRole, newMsUid,
+                Constants.HA_ROLE, nfServiceInst.getExtendedAttrs());
+    }
+
+    private void deleteFromTree(PodDetails podDetails, TopoIdentity id) throws Exception {
+        String nfId = id.getNfId(), nfServiceId = id.getNfServiceId(), nfServiceInstanceId = id.getNfServiceInstanceId();
+        scaleBurst.flush(nfId);
 
         String microservice = podDetails.getNfServiceName();
         String namespace = podDetails.getNamespace();
         String podName = podDetails.getPodName();
 
         LOG.info("Pod: [" + podName + "], Microservice: [" + microservice + "], Namespace: [" + namespace + "]");
+        PodSnapshot snapshot = podDetails.getSnapshot();
+        appliedVersions.deleted(nfId, podKey(podDetails),
+                parseVersion(snapshot != null ? snapshot.getResourceVersion() : null));
 
-        // managed element of this pod instance might not have receive any add event thus updating the managed element
-        // this is required so as to have see if this rcp env
-        byte[] data = ZKManager.getData(ZKUtil.generatePath());
-        me = TopoManager.mapper.readValue(data, ManagedElement.class);
+        // the RCP flag of other replicas is taken over when partitions are loaded, see refreshRcp
         // tree contains nf
-        if (me.has(ZKUtil.generatePath(nfId))) {
-            NetworkFunction networkFunction = me.get(ZKUtil.generatePath(nfId));
+        if (me.has(id.getNfPath())) {
+            NetworkFunction networkFunction = me.get(id.getNfPath());
             // tree contains the nf service
-            if (networkFunction.has(ZKUtil.generatePath(nfId, nfServiceId))) {
+            if (networkFunction.has(id.getNfServicePath())) {
 
-                NFService srvc = networkFunction.get(ZKUtil.generatePath(nfId, nfServiceId));
+                NFService srvc = networkFunction.get(id.getNfServicePath());
 
                 // tree contains the instance, has not already been deleted
-                if (srvc.has(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId))) {
+                if (srvc.has(id.getNfServiceInstancePath())) {
 
                     State nfServiceOldState, nfServiceNewState = State.NULL, nfOldState, nfNewState,
                             nfServiceInstanceOldState;
 
-                    NFServiceInstance srvcInstance = srvc.get(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId));
+                    NFServiceInstance srvcInstance = srvc.get(id.getNfServiceInstancePath());
 
                     nfServiceInstanceOldState = srvcInstance.getState();
 
@@ -638,7 +1250,7 @@ public class TopoManager {
                     // store label for notification
                     String nfServiceInstanceUserLabel = srvcInstance.getUserLabel();
 
-                    srvc.removeElem(ZKUtil.generatePath(nfId, nfServiceId, nfServiceInstanceId));
+                    srvc.removeElem(id.getNfServiceInstancePath());
 
                     nfServiceOldState = srvc.getState();
                     nfOldState = networkFunction.getState();
@@ -647,18 +1259,11 @@ public class TopoManager {
                     //If service is undergoing upgrade need to see if on removal of srvc instance it needs to mark upgrade complete
                     if (srvc.getUpgradeVersion(UPGRADEVERSION_KEY) != null) {
                         LOG.debug("checking if service needs to be marked completed for upgrade, nfId : " + networkFunction.getId()  +  " nfsId:  "+ srvc.getId() );
-                        List<NFServiceInstance> serviceInstanceList = srvc.getNfServiceInstances(nfId);
                         String oldVersion = srvc.getSwVersion();
-                        boolean isUpgradeCompleteForNFS = true;
-                        //loop through the instance and see if instance with prev version still exists
-                        for(NFServiceInstance nfsi : serviceInstanceList){
-                            LOG.debug("In delete method : Iterating service instances to check whether oldversion still exist for nfsId  [" + srvc.getId() + "]  nfService version : ["+ oldVersion +"] equating with nfsiVersion : [" + nfsi.getSvcVersion(NFSI_VERSION_KEY) +"]");
-
-                            if ((nfsi.getSvcVersion(NFSI_VERSION_KEY).equalsIgnoreCase(oldVersion))){
-                                isUpgradeCompleteForNFS = false;
-                                break;
-                            }
-                        }
+                        int oldVersionCount = srvc.countOfVersion(nfId, oldVersion);
+                        LOG.debug("In delete method : nfsId  [" + srvc.getId() + "] has " + oldVersionCount
+                                + " instance(s) left on version [" + oldVersion + "]");
+                        boolean isUpgradeCompleteForNFS = oldVersionCount == 0;
                         //If NFS upgrade is complete then need to see if NF upgrade is also completed as at the same time we can
                         //have multiple services running the upgrade
                         if (isUpgradeCompleteForNFS) {
@@ -666,21 +1271,16 @@ public class TopoManager {
                             LOG.debug("service upgrade completed for  nfId : " + networkFunction.getId()  +  " nfsId:  "+ srvc.getId() + " with new version : "+ srvc.getUpgradeVersion(UPGRADEVERSION_KEY) );
                             srvc.setSwVersion(srvc.getUpgradeVersion(UPGRADEVERSION_KEY));
                             srvc.removeUpgradeVersion(UPGRADEVERSION_KEY);
-                            ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId), TopoManager.mapper.writeValueAsBytes(srvc));
+                            ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(srvc));
 
                             //notify
                             notifier.notify(Constants.NFS_UPGRADE_COMPLETED, me.getId(), nfId, srvc.getId(), null, srvc.getId(), srvc.getUserLabel(),
                                     null, null, podDetails, networkFunction.getSwVersion(), srvc.getSwVersion());
 
                             //Check if all the services of nf are not in upgrade version then only mark nf upgrade complete
-                            List<NFService> nfServicesList =  networkFunction.getServiceOfNf();
-                            boolean isUpgradeCompleteForNetworkFunction = true;
-                            for (NFService nfServ : nfServicesList) {
-                                LOG.debug("In delete method : Iterating services to check whether any service is  still getting upgraded. NfsId  [" + srvc.getId() + "]" + " upgrade version : "+ nfServ.getUpgradeVersion(UPGRADEVERSION_KEY));
-                                if (nfServ.getUpgradeVersion(UPGRADEVERSION_KEY) != null) {
-                                    isUpgradeCompleteForNetworkFunction = false;
-                                }
-                            }
+                            int upgradingServices = networkFunction.upgrading(id.getNfServicePath());
+                            LOG.debug("In delete method : " + upgradingServices + " service(s) of nfId [" + nfId + "] still getting upgraded");
+                            boolean isUpgradeCompleteForNetworkFunction = upgradingServices == 0;
 
                             if (isUpgradeCompleteForNetworkFunction){
                                 String nfNewVersion = networkFunction.getUpgradeVersion(UPGRADEVERSION_KEY);
@@ -701,8 +1301,8 @@ public class TopoManager {
 
                     // update instance count for NFService (in case deployment has scaled down)
                     LOG.debug("Updating NF Service ID: [" + nfServiceId + "]");
-                    srvc.update(nfId);
-                    ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId), TopoManager.mapper.writeValueAsBytes(srvc));
+                    srvc.update(nfId, id.getNfServiceInstancePath());
+                    ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(srvc));
                     nfServiceNewState = srvc.getState();
 
                     String nfServiceUserLabel = srvc.getUserLabel();
@@ -713,25 +1313,15 @@ public class TopoManager {
                     String nfUserLabel = networkFunction.getUserLabel();
 
                     //call update so that all the service belonging to the network function are fetched
-                    networkFunction.update();
+                    networkFunction.update(id.getNfServicePath());
 
                     Object owner = k8s.getOwner(microservice, namespace, srvc.getKind());
 
                     // RCP
                     if (me.isRcp()) {
 
-                        if (networkFunction.getElem().entrySet().parallelStream()
-                                .noneMatch(entry -> {
-                                            try {
-                                                NFService entrySrv = entry.getValue();
-                                                entrySrv.getNfServiceInstances(nfId);
-                                                return entrySrv.getElem().size() != 0;
-                                            } catch (Exception e) {
-                                                return true;
-                                            }
-                                        }
-                                )
-                        ) {
+                        if (networkFunction.getElem().values().stream()
+                                .allMatch(entrySrv -> hasNoInstances(entrySrv, nfId))) {
 
                             networkFunction.getElem().forEach((nfsId, nfs) -> {
 
@@ -770,7 +1360,7 @@ public class TopoManager {
 
                         } else {
                             nfNewState = networkFunction.getState();
-                            ZKManager.updateData(ZKUtil.generatePath(nfId), TopoManager.mapper.writeValueAsBytes(networkFunction));
+                            ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunction));
                         }
 
                         // state change event raise for NF
@@ -797,12 +1387,12 @@ public class TopoManager {
                             }
 
                             srvc.setMinReadyCount(instanceCount);
-                            srvc.update(nfId);
-                            ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId), TopoManager.mapper.writeValueAsBytes(srvc));
+                            srvc.update(nfId, id.getNfServiceInstancePath());
+                            ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(srvc));
                             nfServiceNewState = srvc.getState();
-                            networkFunction.update();
+                            networkFunction.update(id.getNfServicePath());
                             nfNewState = networkFunction.getState();
-                            ZKManager.updateData(ZKUtil.generatePath(nfId), TopoManager.mapper.writeValueAsBytes(networkFunction));
+                            ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunction));
 
                         } else {
                             if (srvc.getElem().size() == 0) {
@@ -825,16 +1415,16 @@ public class TopoManager {
 
                                 LOG.debug("NFService ID: [" + nfServiceId
                                         + "] deleted but pods still remaining, updating state");
-                                srvc.update(nfId);
-                                ZKManager.updateData(ZKUtil.generatePath(nfId, nfServiceId), TopoManager.mapper.writeValueAsBytes(srvc));
+                                srvc.update(nfId, id.getNfServiceInstancePath());
+                                ZKWriteBehind.set(id.getNfServicePath(), TopoManager.mapper.writeValueAsBytes(srvc));
                                 nfServiceNewState = srvc.getState();
                             }
 
                             // get old state, update NF, get new state
                             LOG.debug("Updating NF ID: [" + nfId + "]");
 
-                            networkFunction.update();
-                            ZKManager.updateData(ZKUtil.generatePath(nfId), TopoManager.mapper.writeValueAsBytes(networkFunction));
+                            networkFunction.update(id.getNfServicePath());
+                            ZKWriteBehind.set(id.getNfPath(), TopoManager.mapper.writeValueAsBytes(networkFunction));
                             nfNewState = networkFunction.getState();
 
                             // nf has no nf services left
@@ -67,6 +67,12 @@ public class Leader extends LeaderSelectorListenerAdapter implements Closeable {
         } catch (Exception e) {
             LOG.error(e.getMessage(), e);
         } finally {
+            try {
+                // the next leader starts from what is in ZK
+                ZKWriteBehind.flush(ZKWriteBehind.FLUSH_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             LOG.debug("the leader has relinquished");
         }
 
@@ -17,13 +17,24 @@ package org.xgvela.cnf.zk;
 import org.xgvela.cnf.zk.exception.NoPathExistsException;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 
@@ -35,6 +46,10 @@ public class ZKManager {
 
     private static CuratorFramework client = getClient();
 
+    // versions of the znodes last written by a transaction, so that the next
+    // one needs no checkExists round trip; the tree has a single writer
+    private static final Map<String, Integer> versions = new ConcurrentHashMap<>();
+
     private static CuratorFramework getClient() throws RuntimeException {
         if (client != null) {
             return client;
@@ -70,6 +85,7 @@ public class ZKManager {
     }
 
     public static void updateData(String path, byte[] data) throws Exception {
+        versions.remove(path);
         try {
             if (PathExist(path)) {
                 LOG.debug("ZK update data called for path which exist " + path);
@@ -84,6 +100,28 @@ public class ZKManager {
         }
     }
 
+    /**
+     * read-modify-write of an existing znode, the change is applied again on the
+     * latest data whenever another writer updated the node in between
+     */
+    public static void updateData(String path, Update update) throws Exception {
+        while (true) {
+            Stat stat = new Stat();
+            byte[] data = getClient().getData().storingStatIn(stat).forPath(path);
+            try {
+                getClient().setData().withVersion(stat.getVersion()).forPath(path, update.apply(data));
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                LOG.debug("Concurrent update of " + path + ", retrying");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Update {
+        byte[] apply(byte[] data) throws Exception;
+    }
+
     public static Stat getStat(String path) {
         try {
             return getClient().checkExists().forPath(path);
@@ -102,6 +140,7 @@ public class ZKManager {
     }
 
     public static void delete(String path) throws RuntimeException {
+        forget(path);
         try {
             if (PathExist(path)) {
                 getClient().delete().deletingChildrenIfNeeded().forPath(path);
@@ -121,6 +160,224 @@ public class ZKManager {
         return false;
     }
 
+    private static void forget(String path) {
+        String prefix = path + "/";
+        versions.keySet().removeIf(known -> known.equals(path) || known.startsWith(prefix));
+    }
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1))
+            depth++;
+        return depth;
+    }
+
+    /*
+     * Asynchronous reads, the requests are pipelined over the one session and
+     * complete on the ZK event thread, so whatever is chained onto them must
+     * not block.
+     */
+
+    public static CompletableFuture<byte[]> getDataAsync(String path) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            getClient().getData().inBackground((client, event) -> {
+                if (event.getResultCode() == KeeperException.Code.NONODE.intValue())
+                    future.completeExceptionally(new NoPathExistsException("path doesn't exist for " + path));
+                else if (complete(future, event))
+                    future.complete(event.getData());
+            }).forPath(path);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public static CompletableFuture<List<String>> getChildrenAsync(String path) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        try {
+            getClient().getChildren().inBackground((client, event) -> {
+                if (complete(future, event))
+                    future.complete(event.getChildren());
+            }).forPath(path);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // fails the future if the request failed, else returns true
+    private static boolean complete(CompletableFuture<?> future, CuratorEvent event) {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue())
+            return true;
+        future.completeExceptionally(
+                KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath()));
+        return false;
+    }
+
+    public static Transaction transaction() {
+        return new Transaction();
+    }
+
+    /**
+     * znode writes applied in one multi request, either all of them or none.
+     * A delete takes the subtree below the znode and goes first, so the znode
+     * can be written again in the same transaction; creates go parents first,
+     * missing parents are created empty. Sets are versioned against the last
+     * version written. Should a version be off, e.g. after another replica
+     * wrote the znode, the versions are read again and the transaction retried.
+     */
+    public static class Transaction {
+
+        private static final int ATTEMPTS = 3;
+
+        private final Map<String, byte[]> sets = new LinkedHashMap<>();
+        private final Set<String> deletes = new LinkedHashSet<>();
+
+        private Transaction() {
+        }
+
+        /**
+         * sets the data of the znode, creating it if needed
+         */
+        public Transaction set(String path, byte[] data) {
+            sets.put(path, data);
+            return this;
+        }
+
+        /**
+         * deletes the znode with its children, along with what was set below it
+         * so far in this transaction
+         */
+        public Transaction delete(String path) {
+            String prefix = path + "/";
+            sets.keySet().removeIf(set -> set.equals(path) || set.startsWith(prefix));
+            if (isDeleted(path))
+                return this;
+            deletes.removeIf(delete -> delete.startsWith(prefix));
+            deletes.add(path);
+            return this;
+        }
+
+        public int size() {
+            return sets.size() + deletes.size();
+        }
+
+        public void commit() throws Exception {
+            if (size() == 0)
+                return;
+            for (int attempt = 1; ; attempt++) {
+                List<String> paths = new ArrayList<>();
+                try {
+                    commit(paths);
+                    return;
+                } catch (Exception e) {
+                    // what is known of the znodes may be outdated, it is read again
+                    paths.forEach(versions::remove);
+                    if (!isConflict(e) || attempt >= ATTEMPTS)
+                        throw e;
+                    LOG.debug("ZK transaction conflicted (" + ((KeeperException) e).code() + "), retrying");
+                }
+            }
+        }
+
+        private void commit(List<String> paths) throws Exception {
+            List<CuratorOp> ops = new ArrayList<>();
+            for (String path : deletes) {
+                for (String removal : subtree(path)) {
+                    paths.add(removal);
+                    ops.add(getClient().transactionOp().delete().forPath(removal));
+                }
+            }
+
+            Set<String> creates = new LinkedHashSet<>();
+            List<CuratorOp> updates = new ArrayList<>();
+            for (Map.Entry<String, byte[]> set : sets.entrySet()) {
+                paths.add(set.getKey());
+                Integer version = isDeleted(set.getKey()) ? null : version(set.getKey());
+                if (version == null)
+                    creates.add(set.getKey());
+                else
+                    updates.add(getClient().transactionOp().setData().withVersion(version).forPath(set.getKey(),
+                            set.getValue()));
+            }
+            for (String path : new ArrayList<>(creates)) {
+                for (String parent = parent(path); parent != null && !creates.contains(parent); parent = parent(parent)) {
+                    if (!isDeleted(parent) && version(parent) != null)
+                        break;
+                    paths.add(parent);
+                    creates.add(parent);
+                }
+            }
+            List<String> ordered = new ArrayList<>(creates);
+            ordered.sort(Comparator.comparingInt(ZKManager::depth));
+            for (String path : ordered)
+                ops.add(getClient().transactionOp().create().forPath(path, sets.getOrDefault(path, new byte[0])));
+            ops.addAll(updates);
+
+            List<CuratorTransactionResult> results = getClient().transaction().forOperations(ops);
+            for (CuratorTransactionResult result : results) {
+                switch (result.getType()) {
+                    case CREATE:
+                        versions.put(result.getForPath(), 0);
+                        break;
+                    case SET_DATA:
+                        if (result.getResultStat() != null)
+                            versions.put(result.getForPath(), result.getResultStat().getVersion());
+                        else
+                            versions.remove(result.getForPath());
+                        break;
+                    default:
+                        versions.remove(result.getForPath());
+                }
+            }
+            LOG.debug("ZK transaction committed with " + ops.size() + " operation(s)");
+        }
+
+        // the znodes changed since they were read, e.g. written by another replica
+        private static boolean isConflict(Exception e) {
+            return e instanceof KeeperException.BadVersionException || e instanceof KeeperException.NodeExistsException
+                    || e instanceof KeeperException.NoNodeException || e instanceof KeeperException.NotEmptyException;
+        }
+
+        private boolean isDeleted(String path) {
+            for (String delete : deletes) {
+                if (path.equals(delete) || path.startsWith(delete + "/"))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // version of the znode, null if it does not exist
+    private static Integer version(String path) {
+        Integer version = versions.get(path);
+        if (version != null)
+            return version;
+        Stat stat = getStat(path);
+        return stat != null ? stat.getVersion() : null;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : null;
+    }
+
+    // the znode and everything below it, children first; nothing if it does not exist
+    private static List<String> subtree(String path) throws Exception {
+        List<String> children;
+        try {
+            children = getClient().getChildren().forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            return new ArrayList<>();
+        }
+        List<String> subtree = new ArrayList<>();
+        for (String child : children)
+            subtree.addAll(subtree(path + "/" + child));
+        subtree.add(path);
+        return subtree;
+    }
+
     public static List<String> getChildren(String path) throws Exception {
         return getClient().getChildren().forPath(path);
     }
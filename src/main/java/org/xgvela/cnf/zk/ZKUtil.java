@@ -18,19 +18,33 @@ public class ZKUtil {
 
     public static final String parentPath = "/me";
     public static final String FUNCTIONSET = "/tmaas/functionset";
+    public static final String PARTITIONS = "/tmaas/partitions";
+    public static final String TOMBSTONES = "/tmaas/tombstones";
+    public static final String OWNERS = "/tmaas/owners";
 
     public static String generatePath(String... str) {
-        String path = parentPath;
-        for (String i : str) {
-            path = path + "/" + i;
-        }
-        return path;
+        return append(new StringBuilder(parentPath), str);
     }
     public static String generatePathForNFCountCalculation(String... str) {
-        String path = FUNCTIONSET;
+        return append(new StringBuilder(FUNCTIONSET), str);
+    }
+
+    public static String generatePathForPartition(int partition, String... str) {
+        return append(new StringBuilder(PARTITIONS).append('/').append(partition), str);
+    }
+
+    public static String generatePathForTombstone(String... str) {
+        return append(new StringBuilder(TOMBSTONES), str);
+    }
+
+    public static String generatePathForOwner(String... str) {
+        return append(new StringBuilder(OWNERS), str);
+    }
+
+    private static String append(StringBuilder path, String... str) {
         for (String i : str) {
-            path = path + "/" + i;
+            path.append('/').append(i);
         }
-        return path;
+        return path.toString();
     }
 }
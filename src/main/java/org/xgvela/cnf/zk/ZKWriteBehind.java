@@ -0,0 +1,473 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.zk;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.xgvela.cnf.zk.exception.NoPathExistsException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Write-behind queue for the topology znodes. The in-memory tree is the read
+ * source and its changes are written to ZK by a single writer thread in the
+ * order they were made. The writes of one topology change, e.g. an event
+ * applied between {@link #begin()} and {@link Mutation#commit()}, form a
+ * mutation which is committed in one ZK transaction and never split; queued
+ * mutations are grouped into a transaction of up to ZK_TRANSACTION_OPS znodes,
+ * writes to a znode within a group are coalesced into one. Reads through this
+ * class see pending writes, and {@link #flush(long)} waits until ZK has caught
+ * up, for shutdown and before another replica takes over the NFs. Disabled
+ * with ZK_WRITE_BEHIND=false, each mutation is committed synchronously.
+ * <p>
+ * A committed mutation completes its future once applied, so that the Kafka
+ * offsets of an event are committed only when its writes are in ZK. A
+ * transaction ZK rejects is attempted ZK_WRITE_ATTEMPTS times, then its
+ * mutations one by one, and a mutation failing on its own is given up with
+ * its future failed so the writes behind it go on. While ZK is not reachable
+ * at all, writes are retried without limit.
+ */
+public class ZKWriteBehind {
+
+    private static final Logger LOG = LogManager.getLogger(ZKWriteBehind.class);
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getenv().getOrDefault("ZK_WRITE_BEHIND", "true"));
+    public static final long FLUSH_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("ZK_FLUSH_TIMEOUT_MS", "30000"));
+    private static final int TRANSACTION_OPS = Integer.parseInt(System.getenv().getOrDefault("ZK_TRANSACTION_OPS", "64"));
+    private static final int WRITE_ATTEMPTS = Integer.parseInt(System.getenv().getOrDefault("ZK_WRITE_ATTEMPTS", "5"));
+    private static final long RETRY_MS = 1000;
+
+    private static class Op {
+        private byte[] data;
+        private boolean delete;
+    }
+
+    // latest pending write per path, null data for a deletion; leaves once the mutation which wrote it last is applied
+    private static class Write {
+        private final byte[] data;
+        private final Mutation mutation;
+
+        private Write(byte[] data, Mutation mutation) {
+            this.data = data;
+            this.mutation = mutation;
+        }
+    }
+
+    /**
+     * the znode writes of one topology change, applied to ZK all together or
+     * not at all
+     */
+    public static class Mutation {
+
+        // ops by path in the order they are to be applied, unchanged once committed
+        private final Map<String, Op> ops = new LinkedHashMap<>();
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        private int recorded = 0;
+        private long sequence;
+
+        private Mutation() {
+        }
+
+        private void set(String path, byte[] data) {
+            Op op = ops.get(path);
+            if (op == null) {
+                op = new Op();
+                ops.put(path, op);
+            }
+            op.data = data;
+            recorded++;
+        }
+
+        // pending deletes below the path are taken back, the delete covers them
+        private void delete(String path) {
+            String prefix = path + "/";
+            Iterator<Map.Entry<String, Op>> iterator = ops.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Op> entry = iterator.next();
+                if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                    if (entry.getValue().delete)
+                        undelete(entry.getKey());
+                    iterator.remove();
+                }
+            }
+            Op op = new Op();
+            op.delete = true;
+            ops.put(path, op);
+            recorded++;
+        }
+
+        private void addTo(ZKManager.Transaction transaction) {
+            for (Map.Entry<String, Op> entry : ops.entrySet()) {
+                // a delete before a set of the same znode means it is written anew
+                if (entry.getValue().delete)
+                    transaction.delete(entry.getKey());
+                if (entry.getValue().data != null)
+                    transaction.set(entry.getKey(), entry.getValue().data);
+            }
+        }
+
+        private int size() {
+            int size = 0;
+            for (Op op : ops.values())
+                size += (op.delete ? 1 : 0) + (op.data != null ? 1 : 0);
+            return size;
+        }
+
+        /**
+         * queues the mutation for the writer, or applies it right away with
+         * write-behind disabled
+         *
+         * @return completes once the writes are in ZK, fails if they were given up
+         */
+        public CompletableFuture<Void> commit() throws Exception {
+            if (current.get() == this)
+                current.remove();
+            if (ops.isEmpty())
+                return CompletableFuture.completedFuture(null);
+            if (!ENABLED) {
+                try {
+                    apply(Collections.singletonList(this));
+                } catch (Exception e) {
+                    applied(Collections.singletonList(this), e);
+                    throw e;
+                }
+                applied(Collections.singletonList(this), null);
+                return written;
+            }
+            synchronized (lock) {
+                sequence = ++queued;
+                queue.add(this);
+                lock.notifyAll();
+            }
+            return written;
+        }
+    }
+
+    // mutation being recorded by the thread
+    private static final ThreadLocal<Mutation> current = new ThreadLocal<>();
+
+    // committed mutations not yet applied, oldest first; paths pending by their latest write
+    // and the number of pending deletes per path, so that reads see what ZK will hold
+    private static final Deque<Mutation> queue = new ArrayDeque<>();
+    private static final Map<String, Write> pending = new HashMap<>();
+    private static final Map<String, Integer> deleting = new HashMap<>();
+    private static final Object lock = new Object();
+    private static long queued = 0;
+    private static long applied = 0;
+    private static long coalesced = 0;
+    private static long transactions = 0;
+    private static long failed = 0;
+
+    static {
+        if (ENABLED) {
+            Thread writer = new Thread(ZKWriteBehind::write, "zk-write-behind");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * starts recording the writes of the calling thread into one mutation,
+     * until it is committed
+     */
+    public static Mutation begin() {
+        Mutation mutation = new Mutation();
+        current.set(mutation);
+        return mutation;
+    }
+
+    public static void set(String path, byte[] data) throws Exception {
+        Mutation mutation = current.get();
+        if (mutation == null) {
+            mutation = new Mutation();
+            record(mutation, path, data);
+            mutation.commit();
+        } else {
+            record(mutation, path, data);
+        }
+    }
+
+    /**
+     * deletes the znode with its children, pending writes below it are dropped
+     */
+    public static void delete(String path) {
+        Mutation mutation = current.get();
+        if (mutation == null) {
+            mutation = new Mutation();
+            record(mutation, path, null);
+            try {
+                mutation.commit();
+            } catch (Exception e) {
+                LOG.error("Exception deleting the path: " + path, e);
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        } else {
+            record(mutation, path, null);
+        }
+    }
+
+    // null data for a deletion
+    private static void record(Mutation mutation, String path, byte[] data) {
+        synchronized (lock) {
+            if (data != null) {
+                mutation.set(path, data);
+            } else {
+                mutation.delete(path);
+                String prefix = path + "/";
+                pending.keySet().removeIf(queued -> queued.startsWith(prefix));
+                deleting.merge(path, 1, Integer::sum);
+            }
+            pending.put(path, new Write(data, mutation));
+        }
+    }
+
+    private static void undelete(String path) {
+        deleting.computeIfPresent(path, (deleted, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * data of the znode as it is once the pending writes are applied
+     */
+    public static byte[] getData(String path) throws Exception {
+        synchronized (lock) {
+            Write write = pending.get(path);
+            if (write != null && write.data != null)
+                return write.data;
+            if (write != null || isDeleted(path))
+                throw new NoPathExistsException("path doesn't exist for " + path);
+        }
+        return ZKManager.getData(path);
+    }
+
+    /**
+     * children of the znode once the pending writes are applied, none if it
+     * does not exist
+     */
+    public static List<String> getChildren(String path) throws Exception {
+        Set<String> children = new LinkedHashSet<>();
+        Set<String> deleted = new LinkedHashSet<>();
+        boolean replaced;
+
+        // pending first: whatever is applied since is in ZK by the time ZK is read
+        synchronized (lock) {
+            replaced = isDeleted(path);
+            String prefix = path + "/";
+            for (Map.Entry<String, Write> entry : pending.entrySet()) {
+                String queued = entry.getKey();
+                if (!queued.startsWith(prefix))
+                    continue;
+                String child = queued.substring(prefix.length());
+                int slash = child.indexOf('/');
+                if (entry.getValue().data != null)
+                    children.add(slash >= 0 ? child.substring(0, slash) : child);
+                else if (slash < 0)
+                    deleted.add(child);
+            }
+        }
+        if (!replaced) {
+            try {
+                for (String child : ZKManager.getChildren(path)) {
+                    if (!deleted.contains(child))
+                        children.add(child);
+                }
+            } catch (KeeperException.NoNodeException e) {
+                LOG.debug("ZK path doesn't exist " + path);
+            }
+        }
+        return new ArrayList<>(children);
+    }
+
+    // whether the znode or an ancestor has a delete pending, what was written below since is pending on its own
+    private static boolean isDeleted(String path) {
+        if (deleting.isEmpty())
+            return false;
+        for (int i = path.length(); i > 0; i = path.lastIndexOf('/', i - 1)) {
+            if (deleting.containsKey(path.substring(0, i)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * waits until all mutations committed so far are applied
+     *
+     * @return false if writes are still pending after the timeout
+     */
+    public static boolean flush(long timeoutMs) throws InterruptedException {
+        if (!ENABLED)
+            return true;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            long target = queued;
+            while (applied < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOG.warn((target - applied) + " ZK mutation(s) still pending after " + timeoutMs + " ms");
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    public static int pending() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public static long coalesced() {
+        synchronized (lock) {
+            return coalesced;
+        }
+    }
+
+    public static long transactions() {
+        synchronized (lock) {
+            return transactions;
+        }
+    }
+
+    public static long failed() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    private static void write() {
+        while (true) {
+            // whole mutations, as many as fit into one transaction but at least one
+            List<Mutation> batch = new ArrayList<>();
+            try {
+                synchronized (lock) {
+                    while (queue.isEmpty())
+                        lock.wait();
+                    int size = 0;
+                    for (Mutation mutation : queue) {
+                        if (!batch.isEmpty() && size + mutation.size() > TRANSACTION_OPS)
+                            break;
+                        batch.add(mutation);
+                        size += mutation.size();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void write(List<Mutation> batch) throws InterruptedException {
+        for (int attempt = 1; ; ) {
+            try {
+                apply(batch);
+                applied(batch, null);
+                return;
+            } catch (Exception e) {
+                if (isDisconnected(e)) {
+                    LOG.warn("ZK not reachable, retrying " + batch.size() + " mutation(s): " + e.getMessage());
+                } else if (attempt >= WRITE_ATTEMPTS && batch.size() > 1) {
+                    LOG.warn("Unable to write " + batch.size() + " mutation(s) to ZK, writing them one by one: "
+                            + e.getMessage());
+                    for (Mutation mutation : batch)
+                        write(Collections.singletonList(mutation));
+                    return;
+                } else if (attempt >= WRITE_ATTEMPTS) {
+                    LOG.error("Giving up writing " + batch.get(0).ops.keySet() + " to ZK after " + attempt
+                            + " attempt(s): " + e.getMessage(), e);
+                    applied(batch, e);
+                    return;
+                } else {
+                    LOG.error("Unable to write " + batch.size() + " mutation(s) to ZK, attempt " + attempt + " of "
+                            + WRITE_ATTEMPTS + ": " + e.getMessage());
+                    attempt++;
+                }
+            }
+            Thread.sleep(RETRY_MS);
+        }
+    }
+
+    // the session is lost or cannot be reached, every other write would fail the same
+    private static boolean isDisconnected(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof KeeperException.ConnectionLossException || e instanceof KeeperException.SessionExpiredException
+                    || e instanceof KeeperException.OperationTimeoutException)
+                return true;
+        }
+        return false;
+    }
+
+    private static void apply(List<Mutation> batch) throws Exception {
+        ZKManager.Transaction transaction = ZKManager.transaction();
+        int recorded = 0;
+        for (Mutation mutation : batch) {
+            mutation.addTo(transaction);
+            recorded += mutation.recorded;
+        }
+        transaction.commit();
+        synchronized (lock) {
+            transactions++;
+            coalesced += recorded - transaction.size();
+        }
+    }
+
+    // the writes of the mutations are in ZK, or given up on failure; reads go there again
+    private static void applied(List<Mutation> batch, Exception failure) {
+        synchronized (lock) {
+            if (failure != null)
+                failed += batch.size();
+            for (Mutation mutation : batch) {
+                if (ENABLED) {
+                    queue.remove(mutation);
+                    applied = mutation.sequence;
+                }
+                for (Map.Entry<String, Op> entry : mutation.ops.entrySet()) {
+                    Write write = pending.get(entry.getKey());
+                    if (write != null && write.mutation == mutation)
+                        pending.remove(entry.getKey());
+                    if (entry.getValue().delete)
+                        undelete(entry.getKey());
+                }
+            }
+            lock.notifyAll();
+        }
+        for (Mutation mutation : batch) {
+            if (failure == null)
+                mutation.written.complete(null);
+            else
+                mutation.written.completeExceptionally(failure);
+        }
+    }
+}
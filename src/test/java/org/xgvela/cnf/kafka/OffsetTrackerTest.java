@@ -0,0 +1,53 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OffsetTrackerTest {
+
+    @Test
+    public void pendingRetryHoldsThePosition() {
+        OffsetTracker tracker = new OffsetTracker();
+        for (long offset = 10; offset < 14; offset++)
+            tracker.begin(offset);
+
+        // 11 failed and waits for its retry, the others are applied
+        tracker.complete(10, 12, 13);
+        assertEquals(11, tracker.committable());
+        tracker.committed(11);
+
+        tracker.complete(11);
+        assertEquals(14, tracker.committable());
+    }
+
+    @Test
+    public void abandonedRetryIsRedelivered() throws InterruptedException {
+        OffsetTracker tracker = new OffsetTracker();
+        for (long offset = 10; offset < 14; offset++)
+            tracker.begin(offset);
+        tracker.complete(10, 12, 13);
+
+        // the partition is revoked while 11 waits for its retry
+        tracker.abandon(11);
+        assertTrue(tracker.awaitDrained(0));
+        assertEquals(11, tracker.committable());
+        tracker.committed(11);
+        assertEquals(-1, tracker.committable());
+    }
+}
@@ -0,0 +1,45 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.kafka;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.apache.zookeeper.KeeperException;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryHandlerTest {
+
+    @Test
+    public void transientFailuresAreRetried() {
+        assertTrue(RetryHandler.isTransient(new KubernetesClientException("unreachable")));
+        assertTrue(RetryHandler.isTransient(new KubernetesClientException("unavailable", 503, null)));
+        assertTrue(RetryHandler.isTransient(new KeeperException.ConnectionLossException()));
+        assertTrue(RetryHandler.isTransient(new ExecutionException(new KeeperException.ConnectionLossException())));
+        assertTrue(RetryHandler.isTransient(new IllegalStateException("owner not visible yet")));
+    }
+
+    @Test
+    public void otherFailuresAreNot() {
+        assertFalse(RetryHandler.isTransient(new KubernetesClientException("forbidden", 403, null)));
+        assertFalse(RetryHandler.isTransient(new JsonParseException(null, "malformed")));
+        assertFalse(RetryHandler.isTransient(new NullPointerException()));
+        assertFalse(RetryHandler.isTransient(new IllegalArgumentException("unknown state")));
+    }
+}
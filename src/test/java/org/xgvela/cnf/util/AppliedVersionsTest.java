@@ -0,0 +1,156 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppliedVersionsTest {
+
+    private static final String NF = "nf-1";
+    private static final String POD = "ns/pod-1";
+    private static final long TTL = 60000;
+
+    // tombstones as they would be in ZK, outliving the instances using them
+    private final Map<String, Map<String, AppliedVersions.Tombstone>> zk = new HashMap<>();
+
+    private final AppliedVersions.Store store = new AppliedVersions.Store() {
+
+        @Override
+        public Map<String, AppliedVersions.Tombstone> tombstones(String nfId) {
+            return new HashMap<>(zk.getOrDefault(nfId, Collections.emptyMap()));
+        }
+
+        @Override
+        public void tombstone(String nfId, String podKey, AppliedVersions.Tombstone tombstone) {
+            zk.computeIfAbsent(nfId, id -> new HashMap<>()).put(podKey, tombstone);
+        }
+
+        @Override
+        public void remove(String nfId, String podKey) {
+            zk.getOrDefault(nfId, new HashMap<>()).remove(podKey);
+        }
+    };
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    // resourceVersion written with the NF Service Instance, -1 once it is deleted
+    private final AtomicLong instance = new AtomicLong(-1);
+    private final LongSupplier persisted = instance::get;
+
+    private AppliedVersions versions;
+
+    @Before
+    public void setUp() {
+        versions = restart();
+    }
+
+    private AppliedVersions restart() {
+        return new AppliedVersions(store, TTL, now::get);
+    }
+
+    private void apply(long version) {
+        versions.applied(NF, POD, version);
+        instance.set(version);
+    }
+
+    @Test
+    public void replayAfterRestartIsStale() {
+        apply(10);
+
+        versions = restart();
+        assertTrue(versions.isNotNewer(NF, POD, 9, false, persisted));
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, persisted));
+        assertFalse(versions.isNotNewer(NF, POD, 11, false, persisted));
+    }
+
+    @Test
+    public void replayAfterRebalanceIsStale() {
+        apply(10);
+
+        versions.drop(NF);
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, persisted));
+
+        versions.drop(NF);
+        versions.load(NF, Collections.singletonMap(POD, 10L));
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, () -> -1));
+        assertFalse(versions.isNotNewer(NF, POD, 10, true, () -> -1));
+    }
+
+    @Test
+    public void replayAfterDeleteIsStale() {
+        apply(10);
+        versions.deleted(NF, POD, 12);
+        instance.set(-1);
+
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, persisted));
+        assertTrue(versions.isNotNewer(NF, POD, 11, true, persisted));
+
+        versions = restart();
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, persisted));
+        assertTrue(versions.isNotNewer(NF, POD, 12, false, persisted));
+        assertFalse(versions.isNotNewer(NF, POD, 12, true, persisted));
+
+        versions.drop(NF);
+        assertTrue(versions.isNotNewer(NF, POD, 10, false, persisted));
+    }
+
+    @Test
+    public void recreatedPodLiftsTombstone() {
+        apply(10);
+        versions.deleted(NF, POD, 12);
+
+        assertFalse(versions.isNotNewer(NF, POD, 13, false, persisted));
+        apply(13);
+        assertTrue(zk.get(NF).isEmpty());
+
+        versions = restart();
+        assertTrue(versions.isNotNewer(NF, POD, 13, false, persisted));
+    }
+
+    @Test
+    public void tombstoneExpires() {
+        apply(10);
+        versions.deleted(NF, POD, 12);
+        instance.set(-1);
+
+        now.addAndGet(TTL + 1);
+        assertFalse(versions.isNotNewer(NF, POD, 10, false, persisted));
+        assertTrue(zk.get(NF).isEmpty());
+
+        versions.deleted(NF, "ns/pod-2", 20);
+        now.addAndGet(TTL + 1);
+        versions = restart();
+        assertFalse(versions.isNotNewer(NF, "ns/pod-2", 20, false, persisted));
+        assertEquals(0, zk.get(NF).size());
+    }
+
+    @Test
+    public void unknownVersionIsNeverStale() {
+        apply(10);
+        assertFalse(versions.isNotNewer(NF, POD, -1, false, persisted));
+        assertFalse(versions.isNotNewer(NF, "ns/pod-2", 1, false, () -> -1));
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright 2020 Mavenir
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.xgvela.cnf.zk;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * sequential against pipelined loads of a tree of 10k instances, the way
+ * ApiManager reads the topology; needs a ZK ensemble given by ZK_SVC_FQDN
+ */
+public class ZKManagerBenchmarkTest {
+
+    private static final String ROOT = "/tmaas-benchmark";
+    private static final int NFS = 10;
+    private static final int SERVICES = 10;
+    private static final int INSTANCES = 100;
+    private static final byte[] DATA = new byte[512];
+
+    @BeforeClass
+    public static void createTree() throws Exception {
+        Assume.assumeTrue("ZK_SVC_FQDN not set", System.getenv("ZK_SVC_FQDN") != null);
+        ZKManager.delete(ROOT);
+        for (int nf = 0; nf < NFS; nf++) {
+            for (int service = 0; service < SERVICES; service++) {
+                ZKManager.Transaction transaction = ZKManager.transaction();
+                transaction.set(ROOT + "/nf-" + nf + "/svc-" + service, DATA);
+                for (int instance = 0; instance < INSTANCES; instance++)
+                    transaction.set(ROOT + "/nf-" + nf + "/svc-" + service + "/inst-" + instance, DATA);
+                transaction.commit();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteTree() {
+        if (System.getenv("ZK_SVC_FQDN") != null)
+            ZKManager.delete(ROOT);
+    }
+
+    @Test
+    public void sequentialAgainstPipelined() throws Exception {
+        // warm up the session and the JIT
+        loadSequential();
+        loadPipelined();
+
+        long start = System.nanoTime();
+        int sequential = loadSequential();
+        long sequentialMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int pipelined = loadPipelined();
+        long pipelinedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println("Loaded " + sequential + " znodes sequentially in " + sequentialMs + " ms, pipelined in "
+                + pipelinedMs + " ms");
+        assertEquals(NFS * SERVICES * (INSTANCES + 1) + NFS, sequential);
+        assertEquals(sequential, pipelined);
+    }
+
+    private static int loadSequential() throws Exception {
+        int loaded = 0;
+        for (String nf : ZKManager.getChildren(ROOT)) {
+            ZKManager.getData(ROOT + "/" + nf);
+            loaded++;
+            for (String service : ZKManager.getChildren(ROOT + "/" + nf)) {
+                ZKManager.getData(ROOT + "/" + nf + "/" + service);
+                loaded++;
+                for (String instance : ZKManager.getChildren(ROOT + "/" + nf + "/" + service)) {
+                    ZKManager.getData(ROOT + "/" + nf + "/" + service + "/" + instance);
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static int loadPipelined() throws Exception {
+        return load(ROOT, 0).get(60, TimeUnit.SECONDS) - 1;
+    }
+
+    // the znode and everything below it, children requested all at once
+    private static CompletableFuture<Integer> load(String path, int depth) {
+        CompletableFuture<byte[]> data = depth == 0 ? CompletableFuture.completedFuture(null)
+                : ZKManager.getDataAsync(path);
+        if (depth == 3)
+            return data.thenApply(loaded -> 1);
+        CompletableFuture<Integer> children = ZKManager.getChildrenAsync(path).thenCompose(names -> {
+            List<CompletableFuture<Integer>> loads = new ArrayList<>(names.size());
+            for (String name : names)
+                loads.add(load(path + "/" + name, depth + 1));
+            return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(done -> loads.stream().mapToInt(CompletableFuture::join).sum());
+        });
+        return data.thenCombine(children, (loaded, count) -> count + 1);
+    }
+}